@@ -0,0 +1,326 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental hash of a byte stream. Besides every {@link MessageDigest} algorithm (md5, sha1, sha256, ...)
+ * "crc32", "crc32c" and "xxh64" are supported. Checksums are returned big endian like their usual hex representation.
+ * Instances are not thread safe.
+ */
+public abstract class Checksum {
+
+    protected static final int BUFFER_SIZE = 64 * 1024;
+
+    protected static final int CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * Read buffer reused by every file hashed in the same thread.
+     * It is direct so the channel reads into it without going through a temporary direct buffer of the JVM.
+     */
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+    };
+
+    private byte[] chunk;
+
+    public abstract void update(byte[] data, int off, int len);
+
+    /**
+     * Hashes the remaining bytes of the buffer. Algorithms that only work on arrays get them copied in chunks.
+     */
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        if (chunk == null) {
+            chunk = new byte[CHUNK_SIZE];
+        }
+
+        while (buffer.hasRemaining()) {
+            int len = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, len);
+            update(chunk, 0, len);
+        }
+    }
+
+    /**
+     * Returns the checksum, the instance must not be used afterwards.
+     */
+    public abstract byte[] digest();
+
+    /**
+     * Returns a new instance for the algorithm (case insensitive).
+     */
+    public static Checksum getInstance(String algorithm) throws NoSuchAlgorithmException {
+        String name = algorithm.toLowerCase();
+        switch (name) {
+            case "crc32":
+                return new Crc32();
+            case "crc32c":
+                return new Crc32c();
+            case "xxh64":
+                return new Xxh64();
+            default:
+                return new Digest(MessageDigest.getInstance(name));
+        }
+    }
+
+    /**
+     * Hashes the content of the file.
+     */
+    public static byte[] file(Path path, String algorithm) throws IOException, NoSuchAlgorithmException {
+        Checksum checksum = getInstance(algorithm);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+                buffer.flip();
+                checksum.update(buffer);
+            }
+        }
+
+        return checksum.digest();
+    }
+
+    protected static byte[] int32(int value) {
+        return new byte[]{(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+    }
+
+    protected static class Digest extends Checksum {
+        private final MessageDigest digest;
+
+        protected Digest(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte[] data, int off, int len) {
+            digest.update(data, off, len);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            digest.update(buffer);
+        }
+
+        @Override
+        public byte[] digest() {
+            return digest.digest();
+        }
+    }
+
+    protected static class Crc32 extends Checksum {
+        private final CRC32 crc = new CRC32();
+
+        @Override
+        public void update(byte[] data, int off, int len) {
+            crc.update(data, off, len);
+        }
+
+        @Override
+        public byte[] digest() {
+            return int32((int) crc.getValue());
+        }
+    }
+
+    /**
+     * CRC-32C (Castagnoli) using slicing by 8, java.util.zip.CRC32C only exists since java 9.
+     */
+    protected static class Crc32c extends Checksum {
+        private static final int[][] TABLE = new int[8][256];
+        static {
+            for (int i = 0; i < 256; i++) {
+                int crc = i;
+                for (int j = 0; j < 8; j++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+                }
+                TABLE[0][i] = crc;
+            }
+
+            for (int i = 0; i < 256; i++) {
+                for (int t = 1; t < 8; t++) {
+                    TABLE[t][i] = (TABLE[t-1][i] >>> 8) ^ TABLE[0][TABLE[t-1][i] & 0xff];
+                }
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(byte[] data, int off, int len) {
+            int c = crc;
+            int end = off + len;
+            while (end - off >= 8) {
+                int low = c ^ ((data[off] & 0xff) | (data[off+1] & 0xff) << 8 | (data[off+2] & 0xff) << 16 | (data[off+3] & 0xff) << 24);
+                c = TABLE[7][low & 0xff] ^ TABLE[6][(low >>> 8) & 0xff] ^ TABLE[5][(low >>> 16) & 0xff] ^ TABLE[4][low >>> 24]
+                        ^ TABLE[3][data[off+4] & 0xff] ^ TABLE[2][data[off+5] & 0xff] ^ TABLE[1][data[off+6] & 0xff] ^ TABLE[0][data[off+7] & 0xff];
+                off += 8;
+            }
+
+            while (off < end) {
+                c = (c >>> 8) ^ TABLE[0][(c ^ data[off++]) & 0xff];
+            }
+
+            crc = c;
+        }
+
+        @Override
+        public byte[] digest() {
+            return int32(~crc);
+        }
+    }
+
+    /**
+     * XXH64 with seed 0.
+     */
+    protected static class Xxh64 extends Checksum {
+        private static final long PRIME1 = 0x9E3779B185EBCA87L;
+        private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+        private static final long PRIME3 = 0x165667B19E3779F9L;
+        private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+        private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+        private long v1 = PRIME1 + PRIME2;
+        private long v2 = PRIME2;
+        private long v3 = 0;
+        private long v4 = -PRIME1;
+        private long total;
+        private final byte[] pending = new byte[32];
+        private int pendingLength;
+
+        private static long round(long acc, long input) {
+            acc += input * PRIME2;
+            acc = Long.rotateLeft(acc, 31);
+            return acc * PRIME1;
+        }
+
+        private static long merge(long acc, long value) {
+            acc ^= round(0, value);
+            return acc * PRIME1 + PRIME4;
+        }
+
+        private static long long64(byte[] data, int off) {
+            return (data[off] & 0xffL) | (data[off+1] & 0xffL) << 8 | (data[off+2] & 0xffL) << 16 | (data[off+3] & 0xffL) << 24
+                    | (data[off+4] & 0xffL) << 32 | (data[off+5] & 0xffL) << 40 | (data[off+6] & 0xffL) << 48 | (data[off+7] & 0xffL) << 56;
+        }
+
+        private static long int32(byte[] data, int off) {
+            return (data[off] & 0xffL) | (data[off+1] & 0xffL) << 8 | (data[off+2] & 0xffL) << 16 | (data[off+3] & 0xffL) << 24;
+        }
+
+        private void stripe(byte[] data, int off) {
+            v1 = round(v1, long64(data, off));
+            v2 = round(v2, long64(data, off + 8));
+            v3 = round(v3, long64(data, off + 16));
+            v4 = round(v4, long64(data, off + 24));
+        }
+
+        @Override
+        public void update(byte[] data, int off, int len) {
+            total += len;
+            if (pendingLength > 0) {
+                int count = Math.min(len, 32 - pendingLength);
+                System.arraycopy(data, off, pending, pendingLength, count);
+                pendingLength += count;
+                off += count;
+                len -= count;
+                if (pendingLength < 32) {
+                    return;
+                }
+                stripe(pending, 0);
+                pendingLength = 0;
+            }
+
+            while (len >= 32) {
+                stripe(data, off);
+                off += 32;
+                len -= 32;
+            }
+
+            System.arraycopy(data, off, pending, 0, len);
+            pendingLength = len;
+        }
+
+        @Override
+        public byte[] digest() {
+            long hash;
+            if (total >= 32) {
+                hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+                hash = merge(hash, v1);
+                hash = merge(hash, v2);
+                hash = merge(hash, v3);
+                hash = merge(hash, v4);
+            } else {
+                hash = PRIME5;
+            }
+
+            hash += total;
+
+            int off = 0;
+            while (off + 8 <= pendingLength) {
+                hash ^= round(0, long64(pending, off));
+                hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+                off += 8;
+            }
+
+            if (off + 4 <= pendingLength) {
+                hash ^= int32(pending, off) * PRIME1;
+                hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+                off += 4;
+            }
+
+            while (off < pendingLength) {
+                hash ^= (pending[off] & 0xffL) * PRIME5;
+                hash = Long.rotateLeft(hash, 11) * PRIME1;
+                off++;
+            }
+
+            hash ^= hash >>> 33;
+            hash *= PRIME2;
+            hash ^= hash >>> 29;
+            hash *= PRIME3;
+            hash ^= hash >>> 32;
+
+            byte[] result = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                result[i] = (byte) (hash >>> (56 - 8 * i));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * An open directory. All operations take paths relative to the directory.
+ * If the JVM supports {@link SecureDirectoryStream} (Linux) the lookups are relative to the file descriptor of the
+ * directory (openat/fstatat/unlinkat) so their cost does not depend on how deep the directory is,
+ * otherwise the relative paths are resolved against the path of the directory.
+ */
+public class DirectoryHandle implements Closeable {
+
+    private final Path dir;
+    private final DirectoryStream<Path> stream;
+    private final SecureDirectoryStream<Path> secure;
+    private volatile Path fdPath;
+
+    public DirectoryHandle(Path dir) throws IOException {
+        this(dir, Files.newDirectoryStream(dir));
+    }
+
+    protected DirectoryHandle(Path dir, DirectoryStream<Path> stream) {
+        this.dir = dir;
+        this.stream = stream;
+        this.secure = stream instanceof SecureDirectoryStream ? (SecureDirectoryStream<Path>) stream : null;
+    }
+
+    public Path getPath() {
+        return dir;
+    }
+
+    /**
+     * null if the JVM does not support {@link SecureDirectoryStream}.
+     */
+    public SecureDirectoryStream<Path> getSecureStream() {
+        return secure;
+    }
+
+    /**
+     * Path that refers to the directory by its file descriptor (for example /proc/self/fd/N on Linux).
+     * If set {@link #at(Path)} resolves against it, so path based operations don't walk the path of the directory again.
+     */
+    public void setFdPath(Path fdPath) {
+        this.fdPath = fdPath;
+    }
+
+    /**
+     * null if not set.
+     */
+    public Path getFdPath() {
+        return fdPath;
+    }
+
+    /**
+     * Path of name for operations that are only available path based.
+     */
+    public Path at(Path name) {
+        Path base = fdPath;
+        return base == null ? dir.resolve(name) : base.resolve(name);
+    }
+
+    public BasicFileAttributes readAttributes(Path name, boolean follow) throws IOException {
+        LinkOption[] options = follow ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+        if (secure != null) {
+            return secure.getFileAttributeView(name, BasicFileAttributeView.class, options).readAttributes();
+        }
+
+        return Files.readAttributes(at(name), BasicFileAttributes.class, options);
+    }
+
+    public void createDirectory(Path name) throws IOException {
+        //SecureDirectoryStream has no mkdirat.
+        Files.createDirectory(at(name));
+    }
+
+    /**
+     * Deletes the file, link or empty directory.
+     */
+    public void delete(Path name) throws IOException {
+        if (secure == null) {
+            Files.delete(at(name));
+            return;
+        }
+
+        if (readAttributes(name, false).isDirectory()) {
+            secure.deleteDirectory(name);
+        } else {
+            secure.deleteFile(name);
+        }
+    }
+
+    /**
+     * Opens a directory relative to this directory. Symbolic links are never followed, opening one throws a {@link FileSystemLoopException}.
+     * Without {@link SecureDirectoryStream} this is checked before the directory is opened by its path, so a link that replaces the
+     * directory in between is still followed.
+     */
+    public DirectoryHandle openDirectory(Path name) throws IOException {
+        if (secure != null) {
+            try {
+                return new DirectoryHandle(dir.resolve(name), secure.newDirectoryStream(name, LinkOption.NOFOLLOW_LINKS));
+            } catch (FileSystemException exc) {
+                //openat with O_NOFOLLOW fails with ELOOP which the JVM only reports as a generic FileSystemException.
+                if (exc.getClass() == FileSystemException.class && isSymbolicLink(name)) {
+                    throw new FileSystemLoopException(dir.resolve(name).toString());
+                }
+                throw exc;
+            }
+        }
+
+        if (isSymbolicLink(name)) {
+            throw new FileSystemLoopException(dir.resolve(name).toString());
+        }
+
+        return new DirectoryHandle(dir.resolve(name));
+    }
+
+    private boolean isSymbolicLink(Path name) {
+        try {
+            return readAttributes(name, false).isSymbolicLink();
+        } catch (IOException exc) {
+            //Let opening the directory report the error.
+            return false;
+        }
+    }
+
+    /**
+     * Opens a new listing of this directory. The returned entries are children of {@link #getPath()}.
+     */
+    public DirectoryStream<Path> newDirectoryStream() throws IOException {
+        if (secure != null) {
+            return secure.newDirectoryStream(dir.getFileSystem().getPath("."));
+        }
+
+        return Files.newDirectoryStream(dir);
+    }
+
+    @Override
+    public void close() throws IOException {
+        stream.close();
+    }
+}
@@ -0,0 +1,295 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a directory (optionally including all subdirectories) or a single file for changes using a {@link WatchService}.
+ * On Linux the WatchService of the JVM is backed by inotify.
+ * Events are coalesced per path until they are polled:
+ * create followed by modify is reported as create, create followed by delete is not reported at all
+ * and delete followed by create is reported as modify.
+ */
+public class DirectoryWatcher implements Closeable {
+
+    public static final String CREATE = "create";
+    public static final String MODIFY = "modify";
+    public static final String DELETE = "delete";
+    public static final String OVERFLOW = "overflow";
+
+    public static class Event {
+        /**
+         * path relative to the watched path, empty path for the watched path itself.
+         */
+        public final Path path;
+        public final String kind;
+
+        public Event(Path path, String kind) {
+            this.path = path;
+            this.kind = kind;
+        }
+    }
+
+    private final Path root;
+    private final Path file;
+    private final boolean recursive;
+    private final WatchService service;
+    private final Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+    private final LinkedHashMap<Path, String> pending = new LinkedHashMap<>();
+    private volatile boolean closed;
+
+    /**
+     * @param path directory or file to watch. If path is a file its parent directory is watched and only events for the file are reported.
+     * @param recursive if true then all subdirectories including ones that are created later are watched as well.
+     */
+    public DirectoryWatcher(Path path, boolean recursive) throws IOException {
+        path = path.toAbsolutePath();
+        boolean dir = Files.isDirectory(path);
+        this.root = dir ? path : path.getParent();
+        this.file = dir ? null : path;
+        this.recursive = dir && recursive;
+        if (root == null) {
+            throw new IOException("cannot watch " + path);
+        }
+
+        this.service = root.getFileSystem().newWatchService();
+        try {
+            if (this.recursive) {
+                registerTree(root, false);
+            } else {
+                register(root);
+            }
+        } catch (IOException | RuntimeException e) {
+            service.close();
+            throw e;
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        WatchKey key = dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        keys.put(key, dir);
+    }
+
+    /**
+     * @param created if true the entries below dir are reported as created. They may have been created before dir was registered
+     *                and would otherwise never be reported.
+     */
+    private void registerTree(final Path dir, final boolean created) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path current, BasicFileAttributes attrs) throws IOException {
+                register(current);
+                if (created && !current.equals(dir)) {
+                    merge(current, CREATE);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                if (created) {
+                    merge(path, CREATE);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                //Vanished or unreadable, nothing to watch.
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Returns all events that are currently available without blocking. Returns an empty list if there are none.
+     */
+    public synchronized List<Event> poll() throws IOException {
+        drain();
+        List<Event> result = new ArrayList<>(pending.size());
+        for (Map.Entry<Path, String> entry : pending.entrySet()) {
+            result.add(new Event(entry.getKey(), entry.getValue()));
+        }
+        pending.clear();
+        return result;
+    }
+
+    /**
+     * Returns the next event waiting up to timeout milliseconds for one.
+     * A negative timeout waits forever. Returns null on timeout or if the watcher was closed.
+     */
+    public synchronized Event next(long timeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            drain();
+            Iterator<Map.Entry<Path, String>> iter = pending.entrySet().iterator();
+            if (iter.hasNext()) {
+                Map.Entry<Path, String> entry = iter.next();
+                iter.remove();
+                return new Event(entry.getKey(), entry.getValue());
+            }
+
+            if (closed) {
+                return null;
+            }
+
+            WatchKey key;
+            try {
+                if (timeout < 0) {
+                    key = service.take();
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    key = service.poll(remaining, TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ClosedWatchServiceException e) {
+                return null;
+            }
+
+            if (key == null) {
+                return null;
+            }
+
+            process(key);
+        }
+    }
+
+    private void drain() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            WatchKey key;
+            while ((key = service.poll()) != null) {
+                process(key);
+            }
+        } catch (ClosedWatchServiceException e) {
+            //closed concurrently
+        }
+    }
+
+    private void process(WatchKey key) throws IOException {
+        Path dir = keys.get(key);
+        if (dir == null) {
+            key.cancel();
+            return;
+        }
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                merge(file != null ? file : dir, OVERFLOW);
+                continue;
+            }
+
+            Path child = dir.resolve((Path) event.context());
+            if (file != null && !file.equals(child)) {
+                continue;
+            }
+
+            if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                merge(child, CREATE);
+                if (recursive && Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+                    registerTree(child, true);
+                }
+            } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                merge(child, DELETE);
+            } else {
+                merge(child, MODIFY);
+            }
+        }
+
+        if (!key.reset()) {
+            keys.remove(key);
+            if (dir.equals(root)) {
+                merge(file != null ? file : root, DELETE);
+            }
+        }
+    }
+
+    private void merge(Path path, String kind) {
+        Path relative = (file != null ? file : root).relativize(path);
+        String old = pending.get(relative);
+        if (old == null || old == kind) {
+            pending.put(relative, kind);
+            return;
+        }
+
+        if (old == CREATE && kind == MODIFY) {
+            return;
+        }
+
+        if (old == CREATE && kind == DELETE) {
+            pending.remove(relative);
+            return;
+        }
+
+        if (old == DELETE && kind == CREATE) {
+            pending.put(relative, MODIFY);
+            return;
+        }
+
+        if (old == OVERFLOW) {
+            return;
+        }
+
+        pending.put(relative, kind);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            service.close();
+        } catch (IOException e) {
+            //DC
+        }
+    }
+}
@@ -0,0 +1,465 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Compiled glob pattern that is matched component by component while the tree is traversed.
+ * Supports '*', '?', '[abc]', '[!a-z]' and '{a,b}' within a component and '**' as a whole component for any number of directories.
+ * The leading components without wildcards are the directory the traversal starts in, a directory is only listed
+ * if a component of the pattern can still match below it and directories below literal components are not listed at all.
+ * Instances are immutable and can be shared.
+ */
+public class Glob {
+
+    protected static class Component {
+        protected final boolean globstar;
+        protected final String literal;
+        protected final Pattern pattern;
+
+        protected Component(boolean globstar, String literal, Pattern pattern) {
+            this.globstar = globstar;
+            this.literal = literal;
+            this.pattern = pattern;
+        }
+
+        protected boolean matches(String name) {
+            if (literal != null) {
+                return literal.equals(name);
+            }
+
+            return pattern.matcher(name).matches();
+        }
+    }
+
+    protected final String prefix;
+    protected final Component[] components;
+    protected final boolean directoryOnly;
+
+    protected Glob(String prefix, Component[] components, boolean directoryOnly) {
+        this.prefix = prefix;
+        this.components = components;
+        this.directoryOnly = directoryOnly;
+    }
+
+    protected static boolean isSeparator(char c) {
+        return c == '/' || c == File.separatorChar;
+    }
+
+    /**
+     * Compiles the pattern. '\' escapes the next character unless it is the separator of the platform.
+     */
+    public static Glob compile(String pattern, boolean caseInsensitive) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        boolean escape = File.separatorChar != '\\';
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (escape && c == '\\') {
+                i++;
+                continue;
+            }
+
+            if (isSeparator(c)) {
+                parts.add(pattern.substring(start, i));
+                start = i + 1;
+            }
+        }
+        parts.add(pattern.substring(start));
+
+        boolean directoryOnly = parts.size() > 1 && parts.get(parts.size() - 1).isEmpty();
+        if (directoryOnly) {
+            parts.remove(parts.size() - 1);
+        }
+
+        //Literal prefix, kept as written
+        int literals = 0;
+        int prefixEnd = 0;
+        while (literals < parts.size() && isLiteral(parts.get(literals), escape)) {
+            prefixEnd += parts.get(literals).length() + 1;
+            literals++;
+        }
+
+        String prefix;
+        if (literals == parts.size()) {
+            prefix = pattern.substring(0, Math.min(pattern.length(), prefixEnd - 1));
+            if (prefix.isEmpty() && !pattern.isEmpty()) {
+                prefix = pattern.substring(0, 1);
+            }
+        } else {
+            prefix = literals == 0 ? "" : pattern.substring(0, prefixEnd - 1);
+            if (literals == 1 && (prefix.isEmpty() || prefix.endsWith(":"))) {
+                //Absolute pattern like /*.txt or C:\*.txt
+                prefix = pattern.substring(0, prefixEnd);
+            }
+        }
+
+        List<Component> components = new ArrayList<>();
+        for (int i = literals; i < parts.size(); i++) {
+            String part = parts.get(i);
+            if (part.isEmpty()) {
+                //Duplicate separator
+                continue;
+            }
+
+            if ("**".equals(part)) {
+                if (components.isEmpty() || !components.get(components.size() - 1).globstar) {
+                    components.add(new Component(true, null, null));
+                }
+                continue;
+            }
+
+            if (isLiteral(part, escape)) {
+                components.add(new Component(false, unescape(part, escape), null));
+                continue;
+            }
+
+            components.add(new Component(false, null, Pattern.compile(toRegex(part, escape), caseInsensitive ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0)));
+        }
+
+        return new Glob(prefix, components.toArray(new Component[0]), directoryOnly);
+    }
+
+    protected static boolean isLiteral(String part, boolean escape) {
+        if ("**".equals(part)) {
+            return false;
+        }
+
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (escape && c == '\\') {
+                i++;
+                continue;
+            }
+
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    protected static String unescape(String part, boolean escape) {
+        if (!escape || part.indexOf('\\') < 0) {
+            return part;
+        }
+
+        StringBuilder sb = new StringBuilder(part.length());
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            if (c == '\\' && i + 1 < part.length()) {
+                c = part.charAt(++i);
+            }
+            sb.append(c);
+        }
+
+        return sb.toString();
+    }
+
+    protected static String toRegex(String part, boolean escape) {
+        StringBuilder regex = new StringBuilder();
+        boolean inGroup = false;
+        for (int i = 0; i < part.length(); i++) {
+            char c = part.charAt(i);
+            switch (c) {
+                case '\\':
+                    if (escape && i + 1 < part.length()) {
+                        regex.append(Pattern.quote(String.valueOf(part.charAt(++i))));
+                    } else {
+                        regex.append("\\\\");
+                    }
+                    break;
+                case '*':
+                    regex.append(".*");
+                    break;
+                case '?':
+                    regex.append('.');
+                    break;
+                case '{':
+                    if (inGroup) {
+                        throw new IllegalArgumentException("nested '{' in glob pattern");
+                    }
+                    inGroup = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (inGroup) {
+                        inGroup = false;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                    break;
+                case ',':
+                    regex.append(inGroup ? "|" : ",");
+                    break;
+                case '[':
+                    int end = part.indexOf(']', i + 2);
+                    if (end < 0) {
+                        regex.append("\\[");
+                        break;
+                    }
+                    regex.append('[');
+                    int j = i + 1;
+                    if (part.charAt(j) == '!' || part.charAt(j) == '^') {
+                        regex.append('^');
+                        j++;
+                    }
+                    for (; j < end; j++) {
+                        char k = part.charAt(j);
+                        if (k == '\\' || k == '[' || k == '&' || k == '^') {
+                            regex.append('\\');
+                        }
+                        regex.append(k);
+                    }
+                    regex.append(']');
+                    i = end;
+                    break;
+                default:
+                    if (".$()|+^".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+            }
+        }
+
+        if (inGroup) {
+            throw new IllegalArgumentException("missing '}' in glob pattern");
+        }
+
+        return regex.toString();
+    }
+
+    /**
+     * The leading components of the pattern that contain no wildcards as written, empty if there are none.
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    protected BitSet closure(BitSet states) {
+        for (int i = states.nextSetBit(0); i >= 0 && i < components.length; i = states.nextSetBit(i + 1)) {
+            if (components[i].globstar) {
+                states.set(i + 1);
+            }
+        }
+
+        return states;
+    }
+
+    protected BitSet step(BitSet states, String name) {
+        BitSet next = new BitSet(components.length + 1);
+        for (int i = states.nextSetBit(0); i >= 0 && i < components.length; i = states.nextSetBit(i + 1)) {
+            Component component = components[i];
+            if (component.globstar) {
+                next.set(i);
+            } else if (component.matches(name)) {
+                next.set(i + 1);
+            }
+        }
+
+        return closure(next);
+    }
+
+    protected boolean isMatch(BitSet states) {
+        return states.get(components.length);
+    }
+
+    protected boolean canDescend(BitSet states) {
+        int first = states.nextSetBit(0);
+        return first >= 0 && first < components.length;
+    }
+
+    /**
+     * Returns the literal names that can match in a directory with these states or null if the directory has to be listed.
+     */
+    protected List<String> literalNames(BitSet states) {
+        List<String> names = new ArrayList<>();
+        for (int i = states.nextSetBit(0); i >= 0 && i < components.length; i = states.nextSetBit(i + 1)) {
+            if (components[i].literal == null) {
+                return null;
+            }
+            if (!names.contains(components[i].literal)) {
+                names.add(components[i].literal);
+            }
+        }
+
+        return names;
+    }
+
+    /**
+     * Starts matching below base, which is the directory of {@link #getPrefix()}.
+     */
+    public Walk walk(Path base, boolean follow) {
+        return new Walk(base, follow);
+    }
+
+    /**
+     * Lazy depth first traversal, every directory is read completely once it is entered
+     * so no file descriptors stay open between calls. Not thread safe.
+     */
+    public class Walk {
+        protected final boolean follow;
+        protected final Deque<Frame> stack = new ArrayDeque<>();
+        protected boolean baseDone;
+        protected final Path base;
+
+        protected Walk(Path base, boolean follow) {
+            this.base = base;
+            this.follow = follow;
+        }
+
+        /**
+         * Returns the next matching path relative to the base directory ("" for the base itself) or null if there are no more.
+         */
+        public String next() {
+            if (!baseDone) {
+                baseDone = true;
+                BasicFileAttributes attributes = attributes(base);
+                if (components.length == 0) {
+                    return attributes != null && (!directoryOnly || attributes.isDirectory()) ? "" : null;
+                }
+
+                if (attributes == null || !attributes.isDirectory()) {
+                    return null;
+                }
+
+                stack.push(new Frame(base, "", closure(bitSet(0)), attributes.fileKey(), null));
+            }
+
+            while (!stack.isEmpty()) {
+                Frame frame = stack.peek();
+                if (!frame.names.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+
+                String name = frame.names.next();
+                BitSet states = step(frame.states, name);
+                boolean match = isMatch(states);
+                boolean descend = canDescend(states);
+                if (!match && !descend) {
+                    continue;
+                }
+
+                Path path = frame.dir.resolve(name);
+                String relative = frame.relative.isEmpty() ? name : frame.relative + File.separator + name;
+                BasicFileAttributes attributes = null;
+                if (descend || directoryOnly || frame.literal) {
+                    attributes = attributes(path);
+                    if (attributes == null) {
+                        //Literal name that does not exist or entry that vanished
+                        continue;
+                    }
+                }
+
+                if (descend && attributes.isDirectory() && !isLoop(frame, attributes.fileKey())) {
+                    stack.push(new Frame(path, relative, states, attributes.fileKey(), frame));
+                }
+
+                if (match && (!directoryOnly || attributes.isDirectory())) {
+                    return relative;
+                }
+            }
+
+            return null;
+        }
+
+        protected BitSet bitSet(int state) {
+            BitSet set = new BitSet(components.length + 1);
+            set.set(state);
+            return set;
+        }
+
+        protected BasicFileAttributes attributes(Path path) {
+            try {
+                return follow ? Files.readAttributes(path, BasicFileAttributes.class) : Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        protected boolean isLoop(Frame parent, Object key) {
+            if (!follow || key == null) {
+                return false;
+            }
+
+            for (Frame frame = parent; frame != null; frame = frame.parent) {
+                if (key.equals(frame.key)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        protected class Frame {
+            protected final Path dir;
+            protected final String relative;
+            protected final BitSet states;
+            protected final Object key;
+            protected final Frame parent;
+            protected final boolean literal;
+            protected final Iterator<String> names;
+
+            protected Frame(Path dir, String relative, BitSet states, Object key, Frame parent) {
+                this.dir = dir;
+                this.relative = relative;
+                this.states = states;
+                this.key = key;
+                this.parent = parent;
+                List<String> literals = literalNames(states);
+                this.literal = literals != null;
+                this.names = (literal ? literals : list(dir)).iterator();
+            }
+        }
+
+        protected List<String> list(Path dir) {
+            List<String> names = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path path : stream) {
+                    names.add(path.getFileName().toString());
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                //Unreadable directories are skipped
+            }
+
+            Collections.sort(names);
+            return names;
+        }
+    }
+}
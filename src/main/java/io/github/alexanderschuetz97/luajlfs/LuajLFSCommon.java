@@ -33,16 +33,54 @@ import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaUserdata;
 import org.luaj.vm2.LuaValue;
 import org.luaj.vm2.Varargs;
-import org.luaj.vm2.lib.OneArgFunction;
 import org.luaj.vm2.lib.VarArgFunction;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemLoopException;
 import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public abstract class LuajLFSCommon {
 
@@ -68,18 +106,104 @@ public abstract class LuajLFSCommon {
     protected static final LuaValue SIZE = LuaValue.valueOf("size");
     protected static final LuaValue BLOCKS = LuaValue.valueOf("blocks");
     protected static final LuaValue BLKSIZE = LuaValue.valueOf("blksize");
+    protected static final int ATTR_DEV = 0;
+    protected static final int ATTR_INO = 1;
+    protected static final int ATTR_MODE = 2;
+    protected static final int ATTR_NLINK = 3;
+    protected static final int ATTR_UID = 4;
+    protected static final int ATTR_GID = 5;
+    protected static final int ATTR_RDEV = 6;
+    protected static final int ATTR_ACCESS = 7;
+    protected static final int ATTR_MODIFICATION = 8;
+    protected static final int ATTR_PERMISSIONS = 9;
+    protected static final int ATTR_CHANGE = 10;
+    protected static final int ATTR_SIZE = 11;
+    protected static final int ATTR_BLOCKS = 12;
+    protected static final int ATTR_BLKSIZE = 13;
+    //Only returned when requested by name, never part of the full table.
+    protected static final int ATTR_ACCESS_NSEC = 14;
+    protected static final int ATTR_MODIFICATION_NSEC = 15;
+    protected static final int ATTR_CHANGE_NSEC = 16;
+    protected static final int ATTR_BIRTH = 17;
+    protected static final LuaValue[] ATTRIBUTE_NAMES = {DEV, INO, MODE, NLINK, UID, GID, RDEV, ACCESS, MODIFICATION, PERMISSIONS, CHANGE, SIZE, BLOCKS, BLKSIZE};
+    protected static final LuaValue[] EXTENDED_ATTRIBUTE_NAMES = {LuaValue.valueOf("access_nsec"), LuaValue.valueOf("modification_nsec"), LuaValue.valueOf("change_nsec"), LuaValue.valueOf("birth")};
+    protected static final long EXTENDED_ATTRIBUTE_MASK = -1L << ATTR_ACCESS_NSEC;
+    protected static final Map<LuaValue, Integer> ATTRIBUTE_INDEX = new HashMap<>();
+    static {
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            ATTRIBUTE_INDEX.put(ATTRIBUTE_NAMES[i], i);
+        }
+        for (int i = 0; i < EXTENDED_ATTRIBUTE_NAMES.length; i++) {
+            ATTRIBUTE_INDEX.put(EXTENDED_ATTRIBUTE_NAMES[i], ATTR_ACCESS_NSEC + i);
+        }
+    }
+
     protected static final LuaValue CURRENTDIR = LuaValue.valueOf("currentdir");
     protected static final LuaValue CHDIR = LuaValue.valueOf("chdir");
     protected static final LuaValue SETMODE = LuaValue.valueOf("setmode");
     protected static final LuaValue TOUCH = LuaValue.valueOf("touch");
     protected static final LuaValue DIR = LuaValue.valueOf("dir");
+    protected static final LuaValue TYPE = LuaValue.valueOf("type");
     protected static final LuaValue LOCK = LuaValue.valueOf("lock");
     protected static final LuaValue UNLOCK = LuaValue.valueOf("unlock");
     protected static final LuaValue RMDIR = LuaValue.valueOf("rmdir");
     protected static final LuaValue MKDIR = LuaValue.valueOf("mkdir");
     protected static final LuaValue ATTRIBUTES = LuaValue.valueOf("attributes");
     protected static final LuaValue SYMLINKATTRIBUTES = LuaValue.valueOf("symlinkattributes");
+    protected static final LuaValue ATTRIBUTES_MANY = LuaValue.valueOf("attributes_many");
     protected static final LuaValue LOCK_DIR = LuaValue.valueOf("lock_dir");
+    protected static final LuaValue WALK = LuaValue.valueOf("walk");
+    protected static final LuaValue MAXDEPTH = LuaValue.valueOf("maxdepth");
+    protected static final LuaValue FOLLOW = LuaValue.valueOf("follow");
+    protected static final LuaValue STOP = LuaValue.valueOf("stop");
+    protected static final LuaValue PARALLEL = LuaValue.valueOf("parallel");
+    protected static final LuaValue ORDERED = LuaValue.valueOf("ordered");
+    protected static final LuaValue INVALIDATE = LuaValue.valueOf("invalidate");
+    protected static final LuaValue WATCH = LuaValue.valueOf("watch");
+    protected static final LuaValue OPENDIR = LuaValue.valueOf("opendir");
+    protected static final LuaValue PROGRESS = LuaValue.valueOf("progress");
+    protected static final LuaValue PARENTS = LuaValue.valueOf("parents");
+    protected static final LuaValue COPY = LuaValue.valueOf("copy");
+    protected static final LuaValue PRESERVE = LuaValue.valueOf("preserve");
+    protected static final LuaValue REPLACE = LuaValue.valueOf("replace");
+    protected static final LuaValue COPYTREE = LuaValue.valueOf("copytree");
+    protected static final LuaValue SYMLINKS = LuaValue.valueOf("symlinks");
+    protected static final LuaValue RENAME = LuaValue.valueOf("rename");
+    protected static final LuaValue NOREPLACE = LuaValue.valueOf("noreplace");
+    protected static final LuaValue EXCHANGE = LuaValue.valueOf("exchange");
+    protected static final Varargs ERR_CROSS_DEVICE = err("Invalid cross-device link", 18);
+    protected static final LuaValue DU = LuaValue.valueOf("du");
+    protected static final LuaValue XDEV = LuaValue.valueOf("xdev");
+    protected static final LuaValue DEPTH = LuaValue.valueOf("depth");
+    protected static final LuaValue USAGE = LuaValue.valueOf("usage");
+    protected static final LuaValue FILES = LuaValue.valueOf("files");
+    protected static final LuaValue DIRECTORIES = LuaValue.valueOf("directories");
+    protected static final LuaValue CHILDREN = LuaValue.valueOf("children");
+    protected static final LuaValue ERRORS = LuaValue.valueOf("errors");
+    protected static final LuaValue MMAP = LuaValue.valueOf("mmap");
+    protected static final LuaValue CHECKSUM = LuaValue.valueOf("checksum");
+    protected static final LuaValue RAW = LuaValue.valueOf("raw");
+    protected static final LuaValue SNAPSHOT = LuaValue.valueOf("snapshot");
+    protected static final LuaValue DIFF = LuaValue.valueOf("diff");
+    protected static final LuaValue LEN = LuaValue.valueOf("len");
+    protected static final LuaValue INDEX_OPEN = LuaValue.valueOf("index_open");
+    protected static final LuaValue FULL = LuaValue.valueOf("full");
+    protected static final LuaValue GLOB = LuaValue.valueOf("glob");
+    protected static final LuaValue FIELDS = LuaValue.valueOf("fields");
+    protected static final Varargs ERR_IS_A_DIRECTORY = err("Is a directory", 21);
+    //What copy_file_range reports for anything that is not a regular file
+    protected static final Varargs ERR_NOT_REGULAR_FILE = err("Not a regular file", 22);
+    protected static final Varargs ERR_NOT_A_DIRECTORY = err("Not a directory", 20);
+    protected static final Varargs ERR_CANCELED = err("Operation canceled", 125);
+    protected static final long PROGRESS_INTERVAL_MILLIS = 100;
+    protected static final LuaValue REMOVE = LuaValue.valueOf("remove");
+    protected static final LuaValue RECURSIVE = LuaValue.valueOf("recursive");
+    protected static final LuaValue PATH = LuaValue.valueOf("path");
+    protected static final LuaValue EVENT = LuaValue.valueOf("event");
+    protected static final LuaValue CACHE_STATS = LuaValue.valueOf("cache_stats");
+    protected static final LuaValue HITS = LuaValue.valueOf("hits");
+    protected static final LuaValue MISSES = LuaValue.valueOf("misses");
+    protected static final LuaValue EVICTIONS = LuaValue.valueOf("evictions");
     protected static final LuaValue FREE = LuaValue.valueOf("free");
     protected static final LuaValue NO_SUCH_FILE_OR_DIRECTORY = LuaValue.valueOf("No such file or directory");
     protected static final LuaValue INPUT_OUTPUT_ERROR = LuaValue.valueOf( "Input/output error");
@@ -107,6 +231,16 @@ public abstract class LuajLFSCommon {
 
     protected final JVMNativeUtil jvmu;
 
+    protected volatile ForkJoinPool workerPool;
+
+    protected volatile MetadataCache metadataCache;
+
+    /**
+     * If true mkdir, rmdir, chdir and dir make the actual call right away and map the resulting exception
+     * to the same error instead of checking exists/isDir beforehand.
+     */
+    protected boolean optimistic;
+
     protected LuajLFSCommon()  {
         jvmu = NativeUtils.isJVM() ? NativeUtils.getJVMUtil() : null;
     }
@@ -150,14 +284,20 @@ public abstract class LuajLFSCommon {
         table.set(LINK, new VarArgFunction() {
             @Override
             public Varargs invoke(Varargs args) {
-                return link(args);
+                try {
+                    return link(args);
+                } finally {
+                    //hard links change nlink of the target
+                    invalidate(args.arg1());
+                    invalidate(args.arg(2));
+                }
             }
         });
 
         table.set(DIR, new VarArgFunction() {
             @Override
             public Varargs invoke(Varargs args) {
-                return dir(args.arg1());
+                return dir(args.arg1(), args.arg(2));
             }
         });
 
@@ -178,6 +318,9 @@ public abstract class LuajLFSCommon {
         table.set(RMDIR, new VarArgFunction() {
             @Override
             public Varargs invoke(Varargs args) {
+                if (args.arg(2).istable()) {
+                    return rmdir(args.arg1(), args.arg(2));
+                }
                 return rmdir(args.arg1());
             }
         });
@@ -185,6 +328,9 @@ public abstract class LuajLFSCommon {
         table.set(MKDIR, new VarArgFunction() {
             @Override
             public Varargs invoke(Varargs args) {
+                if (args.arg(2).istable()) {
+                    return mkdir(args.arg1(), args.arg(2));
+                }
                 return mkdir(args.arg1());
             }
         });
@@ -203,12 +349,131 @@ public abstract class LuajLFSCommon {
             }
         });
 
+        table.set(FIELDS, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return fields(args);
+            }
+        });
+
+        table.set(ATTRIBUTES_MANY, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return attributes_many(args);
+            }
+        });
+
         table.set(LOCK_DIR, new VarArgFunction() {
             @Override
             public Varargs invoke(Varargs args) {
                 return lock_dir(args);
             }
         });
+
+        table.set(WALK, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return walk(args);
+            }
+        });
+
+        table.set(OPENDIR, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return opendir(args.arg1());
+            }
+        });
+
+        table.set(WATCH, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return watch(args.arg1(), args.arg(2));
+            }
+        });
+
+        table.set(INVALIDATE, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return invalidate(args);
+            }
+        });
+
+        table.set(COPY, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return copy(args.arg1(), args.arg(2), args.arg(3));
+            }
+        });
+
+        table.set(COPYTREE, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return copytree(args.arg1(), args.arg(2), args.arg(3));
+            }
+        });
+
+        table.set(RENAME, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return rename(args.arg1(), args.arg(2), args.arg(3));
+            }
+        });
+
+        table.set(DU, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return du(args.arg1(), args.arg(2));
+            }
+        });
+
+        table.set(MMAP, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return mmap(args.arg1(), args.arg(2), args.arg(3), args.arg(4));
+            }
+        });
+
+        table.set(CHECKSUM, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return checksum(args.arg1(), args.arg(2), args.arg(3));
+            }
+        });
+
+        table.set(SNAPSHOT, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return snapshot(args.arg1(), args.arg(2));
+            }
+        });
+
+        table.set(DIFF, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return diff(args.arg1(), args.arg(2));
+            }
+        });
+
+        table.set(INDEX_OPEN, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return index_open(args.arg1(), args.arg(2), args.arg(3));
+            }
+        });
+
+        table.set(GLOB, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return glob(args.arg1(), args.arg(2));
+            }
+        });
+
+        table.set(CACHE_STATS, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return cache_stats();
+            }
+        });
     }
 
     protected abstract Varargs lock_dir(Varargs args);
@@ -216,236 +481,2929 @@ public abstract class LuajLFSCommon {
     public abstract boolean isAbsolute(String path);
 
     public LuaPath resolve(String path) {
-        return dirHandler.resolvePath(path);
+        return resolveCached(LuaValue.valueOf(path), path);
+    }
+
+    /**
+     * Same as {@link #resolve(String)} but the cache lookup uses the LuaString so a hit does not convert it to a java String.
+     */
+    public LuaPath resolve(LuaValue path) {
+        return resolveCached(path.checkstring(), null);
+    }
+
+    protected static final int RESOLVE_CACHE_SIZE = 256;
+
+    /**
+     * Maps paths to the resolved LuaPath. Only valid for {@link #resolveCacheWorkDir}.
+     * Always keyed by LuaString so a path passed as String and as LuaString shares the entry.
+     */
+    private final LinkedHashMap<LuaString, LuaPath> resolveCache = new LinkedHashMap<LuaString, LuaPath>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LuaString, LuaPath> eldest) {
+            return size() > RESOLVE_CACHE_SIZE;
+        }
+    };
+
+    private LuaPath resolveCacheWorkDir;
+
+    /**
+     * @param path key converted to a java String or null if it was not converted yet
+     */
+    protected LuaPath resolveCached(LuaString key, String path) {
+        LuaPath workDir = dirHandler.getWorkDirectory();
+        synchronized (resolveCache) {
+            //The work directory may also be changed by anything else that uses the handler.
+            if (workDir != resolveCacheWorkDir && (workDir == null || !workDir.equals(resolveCacheWorkDir))) {
+                resolveCache.clear();
+                resolveCacheWorkDir = workDir;
+            }
+
+            LuaPath resolved = resolveCache.get(key);
+            if (resolved != null) {
+                return resolved;
+            }
+        }
+
+        LuaPath resolved = dirHandler.resolvePath(path != null ? path : key.tojstring());
+        synchronized (resolveCache) {
+            if (workDir == resolveCacheWorkDir) {
+                resolveCache.put(key, resolved);
+            }
+        }
+
+        return resolved;
+    }
+
+    protected void clearResolveCache() {
+        synchronized (resolveCache) {
+            resolveCache.clear();
+            resolveCacheWorkDir = null;
+        }
     }
 
     protected long getTimestamp() {
         return System.currentTimeMillis();
     }
 
+    /**
+     * Pool used for all parallel operations.
+     */
+    protected ForkJoinPool getWorkerPool() {
+        ForkJoinPool pool = workerPool;
+        return pool == null ? ParallelTreeWalker.getDefaultPool() : pool;
+    }
+
+    /**
+     * Metadata reader used by the {@link ParallelTreeWalker}.
+     */
+    protected ParallelTreeWalker.MetadataReader metadataReader() {
+        return new ParallelTreeWalker.MetadataReader() {
+            @Override
+            public void read(Path path, boolean follow, ParallelTreeWalker.Entry entry) throws IOException {
+                BasicFileAttributes attributes = follow ? Files.readAttributes(path, BasicFileAttributes.class) : Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                entry.mode = mapStatMode(attributes);
+                entry.directory = attributes.isDirectory();
+                entry.size = attributes.size();
+                entry.blocks = -1;
+                entry.mtime = attributes.lastModifiedTime().to(TimeUnit.SECONDS);
+                entry.ctime = entry.mtime;
+                entry.nlink = 0;
+                entry.fileKey = attributes.fileKey();
+            }
+        };
+    }
+
     protected abstract Varargs ioErr(IOException exc);
 
-    protected abstract Varargs attributes(Varargs args);
+    /**
+     * Same as {@link #statPath(LuaPath, boolean)} but served from the {@link MetadataCache} if one is set.
+     */
+    protected Object stat(LuaPath path, boolean follow) {
+        MetadataCache cache = metadataCache;
+        if (cache == null) {
+            return statPath(path, follow);
+        }
 
-    protected abstract Varargs symlinkattributes(Varargs args);
+        Path systemPath = path.toSystemPath();
+        if (systemPath == null) {
+            return statPath(path, follow);
+        }
 
-    protected abstract Varargs link(Varargs args);
+        String key = systemPath.toString();
+        Object result = cache.get(key, follow);
+        if (result != null) {
+            return result;
+        }
 
-    protected abstract Varargs lockExclusive(LuaValue userdata, LuaRandomAccessFile fileDescriptor, long start, long len);
+        result = statPath(path, follow);
+        if (!(result instanceof Varargs)) {
+            cache.put(key, follow, result);
+        }
 
-    protected abstract Varargs lockShared(LuaValue userdata, LuaRandomAccessFile fileDescriptor, long start, long len);
+        return result;
+    }
 
-    protected abstract Varargs lockUnlock(LuaValue userdata, LuaRandomAccessFile fileDescriptor, long start, long len);
+    /**
+     * Stat for the first argument of lfs.attributes which is either a path or a file handle (see {@link #getFD(LuaValue)}).
+     * File handles are never served from the metadata cache.
+     */
+    protected Object statArg(LuaValue arg, boolean follow, boolean extended) {
+        if (arg.type() == LuaValue.TUSERDATA) {
+            LuaRandomAccessFile file = getFD(arg);
+            if (file == null) {
+                throw new LuaError("bad argument #1 to 'attributes' (string or FILE* expected, got "+ arg.typename() +")");
+            }
 
-    protected Object getField(Field field, Object instance) {
-        if (jvmu != null) {
-            return jvmu.FromReflectedField(field).get(instance);
+            return statFile(file);
+        }
+
+        return stat(resolve(arg), follow, extended);
+    }
+
+    /**
+     * Stat of an open file. Must return the same types as {@link #statPath(LuaPath, boolean)}.
+     * The default implementation only knows the size of the file.
+     */
+    protected Object statFile(LuaRandomAccessFile file) {
+        FileChannel channel = file.getFileChannel();
+        if (channel == null) {
+            return ERR_NOT_SUPPORTED;
         }
+
         try {
-            field.setAccessible(true);
-            return field.get(instance);
-        } catch (Exception exc) {
-            throw new LuaError("reflection error " + exc.getMessage());
+            return new ChannelAttributes(channel.size());
+        } catch (ClosedChannelException e) {
+            return ERR_BAD_FD;
+        } catch (IOException e) {
+            return ioErr(e);
         }
     }
 
     /**
-     * Hook your IOLib here...
-     * This assumes file is either userdata of RandomAccessFile or instanceof org.luaj.vm2.lib.jse.JseIoLib.FileImpl
-     * This works fine for the default globals.
+     * Attributes of a file of which only the channel is known. The times are not known and null.
      */
-    protected LuaRandomAccessFile getFD(LuaValue value) {
-        if (value.type() != LuaValue.TUSERDATA) {
-            return null;
+    protected static class ChannelAttributes implements BasicFileAttributes {
+        private static final FileTime UNKNOWN = null;
+        private final long size;
+
+        protected ChannelAttributes(long size) {
+            this.size = size;
         }
 
-        if (value.isuserdata(LuaRandomAccessFile.class)) {
-            return (LuaRandomAccessFile) value.checkuserdata(LuaRandomAccessFile.class);
+        @Override
+        public FileTime lastModifiedTime() {
+            return UNKNOWN;
         }
 
+        @Override
+        public FileTime lastAccessTime() {
+            return UNKNOWN;
+        }
 
-        RandomAccessFile raf;
-        if (value.isuserdata(RandomAccessFile.class)) {
-            raf = (RandomAccessFile) value.checkuserdata(RandomAccessFile.class);
-        } else {
-            //Why is this private luaj....
-            //org.luaj.vm2.lib.jse.JseIoLib.FileImpl
-            try {
-                Field f = value.getClass().getDeclaredField("file");
-                raf = (RandomAccessFile) getField(f, value);
-            } catch (Exception exc) {
-                //Can be anything from NoSuchField or ClassCast or NPE
-                return null;
-            }
+        @Override
+        public FileTime creationTime() {
+            return UNKNOWN;
         }
 
-        if (raf == null) {
+        @Override
+        public boolean isRegularFile() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
             return null;
         }
+    }
 
-        return new DefaultLuaRandomAccessFile(raf, null);
+    /**
+     * Same as {@link #stat(LuaPath, boolean)} but if extended is true the result is wrapped
+     * in an {@link ExtendedStat} that also contains the timestamps with nanosecond precision.
+     */
+    protected Object stat(LuaPath path, boolean follow, boolean extended) {
+        Object result = stat(path, follow);
+        if (!extended || result instanceof Varargs) {
+            return result;
+        }
+
+        try {
+            return readExtendedStat(path, follow, result);
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+    }
 
+    /**
+     * Reads the precise timestamps using the "unix" attribute view, falls back to {@link BasicFileAttributes}
+     * if the view is not available. If only basic attributes are available change is the modification time.
+     * All timestamps come from this single call, the seconds of stat are not used for them.
+     */
+    protected ExtendedStat readExtendedStat(LuaPath path, boolean follow, Object stat) throws IOException {
+        Path systemPath = path.toSystemPath();
+        if (systemPath != null) {
+            LinkOption[] options = follow ? new LinkOption[0] : new LinkOption[]{LinkOption.NOFOLLOW_LINKS};
+            try {
+                Map<String, Object> times = Files.readAttributes(systemPath, "unix:lastAccessTime,lastModifiedTime,ctime,creationTime", options);
+                return new ExtendedStat(stat, (FileTime) times.get("lastAccessTime"), (FileTime) times.get("lastModifiedTime"), (FileTime) times.get("ctime"), birth((FileTime) times.get("creationTime"), (FileTime) times.get("lastModifiedTime")));
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                //No unix view
+            }
+        }
 
+        BasicFileAttributes attributes = follow ? path.attributes() : path.linkAttributes();
+        return new ExtendedStat(stat, attributes.lastAccessTime(), attributes.lastModifiedTime(), attributes.lastModifiedTime(), birth(attributes.creationTime(), attributes.lastModifiedTime()));
     }
 
-    protected Varargs unlock(Varargs args) {
-        LuaRandomAccessFile value = getFD(args.arg1());
-        if (value == null) {
-            throw new LuaError("bad argument #1 to 'unlock' (FILE* expected, got "+ args.arg1().typename() +")");
+    protected static final String OS_NAME = System.getProperty("os.name", "").toLowerCase();
+
+    /**
+     * true if creationTime can be the real birth time. Before java 22 the JDK reports the modification time on Linux
+     * and on other unix systems except the BSDs it still does.
+     */
+    protected static final boolean BIRTH_TIME_SUPPORTED = isBirthTimeSupported();
+
+    private static boolean isBirthTimeSupported() {
+        if (OS_NAME.startsWith("windows") || OS_NAME.startsWith("mac") || OS_NAME.endsWith("bsd")) {
+            return true;
         }
 
-        long start = args.optlong(2, 0);
-        long end = args.optlong(3, 0);
-        if (start < 0) {
-            return err("Invalid argument");
+        if (!OS_NAME.startsWith("linux")) {
+            return false;
         }
 
-        return lockUnlock(args.arg1(), value, start, end);
+        String version = System.getProperty("java.specification.version", "");
+        try {
+            return !version.startsWith("1.") && Integer.parseInt(version) >= 22;
+        } catch (NumberFormatException e) {
+            return false;
+        }
     }
 
-    protected Varargs lock(Varargs args) {
-        LuaRandomAccessFile value = getFD(args.arg1());
-        if (value == null) {
-            throw new LuaError("bad argument #1 to 'lock' (FILE* expected, got "+ args.arg1().typename() +")");
+    /**
+     * Returns null unless creationTime is the birth time recorded by the file system.
+     */
+    protected static FileTime birth(FileTime creationTime, FileTime modification) {
+        if (!BIRTH_TIME_SUPPORTED || creationTime == null || creationTime.toMillis() == 0) {
+            return null;
         }
 
-        LuaString mode = args.checkstring(2);
-        long start = args.optlong(3, 0);
+        if (OS_NAME.startsWith("linux") && creationTime.equals(modification)) {
+            //The JDK falls back to the modification time if statx did not return a birth time
+            return null;
+        }
 
-        long end = args.optlong(4, 0);
+        return creationTime;
+    }
 
-        switch (mode.m_length == 0 ? 0 : mode.m_bytes[mode.m_offset]) {
-            case('r'):
-                if (start < 0) {
-                    return err("Invalid argument");
-                }
-                return lockShared(args.arg1(), value, start, end);
-            case('w'):
-                if (start < 0) {
-                    return err("Invalid argument");
-                }
-                return lockExclusive(args.arg1(), value, start, end);
-            case('u'):
-                if (start < 0) {
-                    return err("Invalid argument");
+    /**
+     * true if any of the requested attributes is only available with {@link #stat(LuaPath, boolean, boolean)}.
+     */
+    protected static boolean isExtended(Varargs fields) {
+        LuaValue arg1 = fields.arg1();
+        if (arg1 instanceof field_list_userdata) {
+            return (((field_list_userdata) arg1).mask & EXTENDED_ATTRIBUTE_MASK) != 0;
+        }
+
+        if (arg1.istable()) {
+            return false;
+        }
+
+        for (int i = 1; i <= fields.narg(); i++) {
+            if (isExtended(fields.arg(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isExtended(LuaValue name) {
+        if (!name.isstring()) {
+            return false;
+        }
+
+        Integer index = ATTRIBUTE_INDEX.get(name.checkstring());
+        return index != null && index >= ATTR_ACCESS_NSEC;
+    }
+
+    protected static LuaValue nsec(FileTime time) {
+        if (time == null) {
+            return LuaValue.NIL;
+        }
+
+        long nsec = time.to(TimeUnit.NANOSECONDS) % 1000000000L;
+        return LuaValue.valueOf(nsec < 0 ? nsec + 1000000000L : nsec);
+    }
+
+    /**
+     * Seconds that match {@link #nsec(FileTime)}, rounded down for times before 1970.
+     */
+    protected static LuaValue seconds(FileTime time) {
+        if (time == null) {
+            return LuaValue.NIL;
+        }
+
+        long seconds = time.to(TimeUnit.SECONDS);
+        return LuaValue.valueOf(time.to(TimeUnit.NANOSECONDS) % 1000000000L < 0 ? seconds - 1 : seconds);
+    }
+
+    /**
+     * Result of {@link #statPath(LuaPath, boolean)} with precise timestamps.
+     */
+    protected static class ExtendedStat {
+        protected final Object stat;
+        protected final FileTime access;
+        protected final FileTime modification;
+        protected final FileTime change;
+        protected final FileTime birth;
+
+        protected ExtendedStat(Object stat, FileTime access, FileTime modification, FileTime change, FileTime birth) {
+            this.stat = stat;
+            this.access = access;
+            this.modification = modification;
+            this.change = change;
+            this.birth = birth;
+        }
+    }
+
+    /**
+     * Removes the path and its parent directory from the metadata cache.
+     */
+    protected void invalidate(LuaValue path) {
+        if (metadataCache != null && path.isstring()) {
+            invalidate(resolve(path.tojstring()), false);
+        }
+    }
+
+    protected void invalidate(LuaPath path, boolean tree) {
+        if (metadataCache == null) {
+            return;
+        }
+
+        Path systemPath = path.toSystemPath();
+        if (systemPath != null) {
+            invalidate(systemPath, tree);
+        }
+    }
+
+    protected void invalidate(Path systemPath, boolean tree) {
+        MetadataCache cache = metadataCache;
+        if (cache == null) {
+            return;
+        }
+
+        if (tree) {
+            cache.invalidateTree(systemPath.toString());
+        } else {
+            cache.invalidate(systemPath.toString());
+        }
+
+        Path parent = systemPath.getParent();
+        if (parent != null) {
+            cache.invalidate(parent.toString());
+        }
+    }
+
+    /**
+     * lfs.invalidate(path, recursive)
+     * Removes path (and everything below it if recursive is true) from the metadata cache.
+     */
+    protected Varargs invalidate(Varargs args) {
+        LuaPath path = resolve(args.checkjstring(1));
+        invalidate(path, args.optboolean(2, false));
+        return LuaValue.TRUE;
+    }
+
+    /**
+     * lfs.cache_stats()
+     * Returns a table with the counters of the metadata cache or nil if there is no cache.
+     */
+    protected Varargs cache_stats() {
+        MetadataCache cache = metadataCache;
+        if (cache == null) {
+            return LuaValue.NIL;
+        }
+
+        LuaTable table = new LuaTable();
+        table.set(HITS, LuaValue.valueOf(cache.getHits()));
+        table.set(MISSES, LuaValue.valueOf(cache.getMisses()));
+        table.set(EVICTIONS, LuaValue.valueOf(cache.getEvictions()));
+        table.set(SIZE, LuaValue.valueOf(cache.size()));
+        return table;
+    }
+
+    protected abstract Varargs attributes(Varargs args);
+
+    protected abstract Varargs symlinkattributes(Varargs args);
+
+    /**
+     * Performs stat (follow=true) or lstat on the path.
+     * Returns either {@link Stat}, {@link BasicFileAttributes} or the error as {@link Varargs}.
+     * Must be thread safe.
+     */
+    protected Object statPath(LuaPath path, boolean follow) {
+        try {
+            return follow ? path.attributes() : path.linkAttributes();
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+    }
+
+    /**
+     * Maps the result of {@link #statPath(LuaPath, boolean)} to what lfs.attributes returns.
+     * fields are the arguments after the path:
+     * nothing or a table to fill: all attributes as table
+     * one or more attribute names: the values of those attributes as multiple return values
+     * a field list returned by lfs.fields: a new table with only those attributes
+     */
+    protected Varargs mapStat(Varargs fields, Object stat) {
+        if (stat instanceof Varargs) {
+            return (Varargs) stat;
+        }
+
+        LuaValue arg2 = fields.arg1();
+        if (arg2.isstring() && fields.narg() == 1) {
+            return statField(attributeIndex(arg2), stat);
+        }
+
+        if (arg2.isstring()) {
+            LuaValue[] values = new LuaValue[fields.narg()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = statField(attributeIndex(fields.arg(i+1)), stat);
+            }
+
+            return LuaValue.varargsOf(values);
+        }
+
+        if (arg2 instanceof field_list_userdata) {
+            long mask = ((field_list_userdata) arg2).mask;
+            LuaTable result = new LuaTable(0, Long.bitCount(mask));
+            for (long remaining = mask; remaining != 0; remaining &= remaining - 1) {
+                int index = Long.numberOfTrailingZeros(remaining);
+                result.rawset(attributeName(index), statField(index, stat));
+            }
+
+            return result;
+        }
+
+        if (stat instanceof ExtendedStat) {
+            stat = ((ExtendedStat) stat).stat;
+        }
+
+        if (stat instanceof Stat) {
+            return mapStatResult(arg2, (Stat) stat);
+        }
+
+        return mapStatResult(arg2, (BasicFileAttributes) stat);
+    }
+
+    protected LuaValue statField(int index, Object stat) {
+        if (stat instanceof ExtendedStat) {
+            ExtendedStat extended = (ExtendedStat) stat;
+            switch (index) {
+                //Seconds and nanoseconds have to come from the same read
+                case(ATTR_ACCESS):
+                    return seconds(extended.access);
+                case(ATTR_MODIFICATION):
+                    return seconds(extended.modification);
+                case(ATTR_CHANGE):
+                    return seconds(extended.change);
+                case(ATTR_ACCESS_NSEC):
+                    return nsec(extended.access);
+                case(ATTR_MODIFICATION_NSEC):
+                    return nsec(extended.modification);
+                case(ATTR_CHANGE_NSEC):
+                    return nsec(extended.change);
+                case(ATTR_BIRTH):
+                    return seconds(extended.birth);
+                default:
+                    stat = extended.stat;
+            }
+        }
+
+        if (stat instanceof Stat) {
+            return statField(index, (Stat) stat);
+        }
+
+        return statField(index, (BasicFileAttributes) stat);
+    }
+
+    /**
+     * lfs.attributes_many(paths, fields, options)
+     * Returns a table with the attributes of every path. Entries that failed are set to false,
+     * in that case a second table that maps the index to {message, code} is returned.
+     */
+    protected Varargs attributes_many(Varargs args) {
+        LuaTable paths = args.checktable(1);
+        LuaValue fields = args.arg(2);
+        LuaValue options = args.arg(3);
+        boolean parallel = options.istable() && options.get(PARALLEL).toboolean();
+
+        int count = paths.length();
+        LuaPath[] resolved = new LuaPath[count];
+        for (int i = 0; i < count; i++) {
+            resolved[i] = resolve(paths.get(i+1));
+        }
+
+        boolean extended = isExtended(fields);
+        Object[] stats = new Object[count];
+        if (parallel && count > 1) {
+            getWorkerPool().invoke(new StatTask(resolved, stats, 0, count, extended));
+        } else {
+            for (int i = 0; i < count; i++) {
+                stats[i] = stat(resolved[i], true, extended);
+            }
+        }
+
+        //Every result needs its own table.
+        LuaValue arg2 = fields.isstring() || fields instanceof field_list_userdata ? fields : LuaValue.NIL;
+        LuaTable results = new LuaTable(count, 0);
+        LuaTable errors = null;
+        for (int i = 0; i < count; i++) {
+            Varargs result = mapStat(arg2, stats[i]);
+            if (!result.arg1().isnil()) {
+                results.set(i+1, result.arg1());
+                continue;
+            }
+
+            results.set(i+1, LuaValue.FALSE);
+            if (errors == null) {
+                errors = new LuaTable();
+            }
+
+            errors.set(i+1, LuaValue.listOf(new LuaValue[]{result.arg(2), result.arg(3)}));
+        }
+
+        if (errors == null) {
+            return results;
+        }
+
+        return LuaValue.varargsOf(results, errors);
+    }
+
+    protected class StatTask extends RecursiveAction {
+        protected static final int THRESHOLD = 32;
+        protected final LuaPath[] paths;
+        protected final Object[] results;
+        protected final int from;
+        protected final int to;
+        protected final boolean extended;
+
+        protected StatTask(LuaPath[] paths, Object[] results, int from, int to, boolean extended) {
+            this.paths = paths;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.extended = extended;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    results[i] = stat(paths[i], true, extended);
                 }
-                return lockUnlock(args.arg1(), value, start, end);
-            default:
-                throw new LuaError("lock: invalid mode");
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new StatTask(paths, results, from, mid, extended), new StatTask(paths, results, mid, to, extended));
+        }
+    }
+
+    /**
+     * lfs.checksum(path_or_list, algorithm, options)
+     * Hashes the content of a file or of every file in an array, see {@link Checksum} for the algorithms (default "sha256").
+     * The checksum is returned as lower case hex string or as raw bytes if options.raw is true.
+     * For an array a table with the checksums is returned, the files are hashed concurrently on the worker pool
+     * unless options.parallel is false. Entries that failed are set to false, in that case a second table that maps the index
+     * to {message, code} is returned.
+     */
+    protected Varargs checksum(LuaValue paths, LuaValue algorithm, LuaValue options) {
+        String name = algorithm.isnil() ? "sha256" : algorithm.checkjstring();
+        try {
+            Checksum.getInstance(name);
+        } catch (NoSuchAlgorithmException e) {
+            throw new LuaError("bad argument #2 to 'checksum' (unsupported algorithm '" + name + "')");
+        }
+
+        if (!options.isnil()) {
+            options.checktable();
+        }
+
+        boolean raw = !options.isnil() && options.get(RAW).toboolean();
+        if (!paths.istable()) {
+            Varargs result = checksum(resolve(paths), name);
+            return result instanceof LuaValue ? checksumValue((LuaValue) result, raw) : result;
+        }
+
+        int count = paths.length();
+        LuaPath[] resolved = new LuaPath[count];
+        for (int i = 0; i < count; i++) {
+            resolved[i] = resolve(paths.get(i+1));
+        }
+
+        Varargs[] checksums = new Varargs[count];
+        if (count > 1 && (options.isnil() || !options.get(PARALLEL).eq_b(LuaValue.FALSE))) {
+            getWorkerPool().invoke(new ChecksumTask(resolved, checksums, name, 0, count));
+        } else {
+            for (int i = 0; i < count; i++) {
+                checksums[i] = checksum(resolved[i], name);
+            }
+        }
+
+        LuaTable results = new LuaTable(count, 0);
+        LuaTable errors = null;
+        for (int i = 0; i < count; i++) {
+            Varargs result = checksums[i];
+            if (result instanceof LuaValue) {
+                results.set(i+1, checksumValue((LuaValue) result, raw));
+                continue;
+            }
+
+            results.set(i+1, LuaValue.FALSE);
+            if (errors == null) {
+                errors = new LuaTable();
+            }
+
+            errors.set(i+1, LuaValue.listOf(new LuaValue[]{result.arg(2), result.arg(3)}));
+        }
+
+        if (errors == null) {
+            return results;
+        }
+
+        return LuaValue.varargsOf(results, errors);
+    }
+
+    /**
+     * Returns the raw checksum as lua string or the error. Safe to call from any thread.
+     */
+    protected Varargs checksum(LuaPath path, String algorithm) {
+        Path systemPath = path.toSystemPath();
+        if (systemPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        try {
+            return LuaString.valueUsing(Checksum.file(systemPath, algorithm));
+        } catch (NoSuchAlgorithmException e) {
+            return ERR_NOT_SUPPORTED;
+        } catch (IOException e) {
+            if (Files.isDirectory(systemPath)) {
+                return ERR_IS_A_DIRECTORY;
+            }
+            return fileErr(e);
+        }
+    }
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    protected static LuaValue checksumValue(LuaValue checksum, boolean raw) {
+        if (raw) {
+            return checksum;
+        }
+
+        LuaString bytes = checksum.checkstring();
+        byte[] hex = new byte[bytes.m_length * 2];
+        for (int i = 0; i < bytes.m_length; i++) {
+            int b = bytes.m_bytes[bytes.m_offset + i] & 0xff;
+            hex[i * 2] = HEX[b >>> 4];
+            hex[i * 2 + 1] = HEX[b & 0xf];
+        }
+
+        return LuaString.valueUsing(hex);
+    }
+
+    protected class ChecksumTask extends RecursiveAction {
+        protected final LuaPath[] paths;
+        protected final Varargs[] results;
+        protected final String algorithm;
+        protected final int from;
+        protected final int to;
+
+        protected ChecksumTask(LuaPath[] paths, Varargs[] results, String algorithm, int from, int to) {
+            this.paths = paths;
+            this.results = results;
+            this.algorithm = algorithm;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            //Every file is worth its own task.
+            if (to - from == 1) {
+                results[from] = checksum(paths[from], algorithm);
+                return;
+            }
+
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChecksumTask(paths, results, algorithm, from, mid), new ChecksumTask(paths, results, algorithm, mid, to));
+        }
+    }
+
+    protected abstract Varargs link(Varargs args);
+
+    protected abstract Varargs lockExclusive(LuaValue userdata, LuaRandomAccessFile fileDescriptor, long start, long len);
+
+    protected abstract Varargs lockShared(LuaValue userdata, LuaRandomAccessFile fileDescriptor, long start, long len);
+
+    protected abstract Varargs lockUnlock(LuaValue userdata, LuaRandomAccessFile fileDescriptor, long start, long len);
+
+    protected Object getField(Field field, Object instance) {
+        if (jvmu != null) {
+            return jvmu.FromReflectedField(field).get(instance);
+        }
+        try {
+            field.setAccessible(true);
+            return field.get(instance);
+        } catch (Exception exc) {
+            throw new LuaError("reflection error " + exc.getMessage());
+        }
+    }
+
+    /**
+     * Hook your IOLib here...
+     * This assumes file is either userdata of RandomAccessFile or instanceof org.luaj.vm2.lib.jse.JseIoLib.FileImpl
+     * This works fine for the default globals.
+     */
+    protected LuaRandomAccessFile getFD(LuaValue value) {
+        if (value.type() != LuaValue.TUSERDATA) {
+            return null;
+        }
+
+        if (value.isuserdata(LuaRandomAccessFile.class)) {
+            return (LuaRandomAccessFile) value.checkuserdata(LuaRandomAccessFile.class);
+        }
+
+
+        RandomAccessFile raf;
+        if (value.isuserdata(RandomAccessFile.class)) {
+            raf = (RandomAccessFile) value.checkuserdata(RandomAccessFile.class);
+        } else {
+            //Why is this private luaj....
+            //org.luaj.vm2.lib.jse.JseIoLib.FileImpl
+            try {
+                Field f = value.getClass().getDeclaredField("file");
+                raf = (RandomAccessFile) getField(f, value);
+            } catch (Exception exc) {
+                //Can be anything from NoSuchField or ClassCast or NPE
+                return null;
+            }
+        }
+
+        if (raf == null) {
+            return null;
+        }
+
+        return new DefaultLuaRandomAccessFile(raf, null);
+
+
+    }
+
+    protected Varargs unlock(Varargs args) {
+        LuaRandomAccessFile value = getFD(args.arg1());
+        if (value == null) {
+            throw new LuaError("bad argument #1 to 'unlock' (FILE* expected, got "+ args.arg1().typename() +")");
+        }
+
+        long start = args.optlong(2, 0);
+        long end = args.optlong(3, 0);
+        if (start < 0) {
+            return err("Invalid argument");
+        }
+
+        return lockUnlock(args.arg1(), value, start, end);
+    }
+
+    protected Varargs lock(Varargs args) {
+        LuaRandomAccessFile value = getFD(args.arg1());
+        if (value == null) {
+            throw new LuaError("bad argument #1 to 'lock' (FILE* expected, got "+ args.arg1().typename() +")");
+        }
+
+        LuaString mode = args.checkstring(2);
+        long start = args.optlong(3, 0);
+
+        long end = args.optlong(4, 0);
+
+        switch (mode.m_length == 0 ? 0 : mode.m_bytes[mode.m_offset]) {
+            case('r'):
+                if (start < 0) {
+                    return err("Invalid argument");
+                }
+                return lockShared(args.arg1(), value, start, end);
+            case('w'):
+                if (start < 0) {
+                    return err("Invalid argument");
+                }
+                return lockExclusive(args.arg1(), value, start, end);
+            case('u'):
+                if (start < 0) {
+                    return err("Invalid argument");
+                }
+                return lockUnlock(args.arg1(), value, start, end);
+            default:
+                throw new LuaError("lock: invalid mode");
+        }
+    }
+
+    protected Varargs mkdir(LuaValue path) {
+        LuaPath f = resolve(path.checkjstring());
+        Path systemPath = optimistic ? f.toSystemPath() : null;
+        if (systemPath != null) {
+            try {
+                fsCreateDirectory(systemPath);
+                return LuaValue.TRUE;
+            } catch (FileAlreadyExistsException e) {
+                return err("File exists", 17);
+            } catch (NoSuchFileException e) {
+                return err(NO_SUCH_FILE_OR_DIRECTORY, 2);
+            } catch (IOException e) {
+                return err(INPUT_OUTPUT_ERROR, 5);
+            } finally {
+                invalidate(systemPath, false);
+            }
+        }
+
+        if (fsExists(f)) {
+            return err("File exists", 17);
+        }
+
+        LuaPath parent = f.parent();
+
+        if (parent != null && !fsExists(parent)) {
+            return err(NO_SUCH_FILE_OR_DIRECTORY, 2);
+        }
+
+
+        try {
+            fsMkdir(f);
+            return LuaValue.TRUE;
+        } catch (IOException e) {
+            return err(INPUT_OUTPUT_ERROR, 5);
+        } finally {
+            invalidate(f, false);
+        }
+    }
+
+    /**
+     * lfs.mkdir(path, options)
+     * If options.parents is true missing parent directories are created and an existing directory is not an error.
+     * options.mode sets the permissions of the directory at path either as number (0755 = 493) or string ("rwxr-xr-x"),
+     * the umask still applies. Missing parents are created with the default permissions like mkdir -p does.
+     * The leaf is created first, the parents are only looked at if that fails because one is missing.
+     */
+    protected Varargs mkdir(LuaValue path, LuaValue options) {
+        LuaPath f = resolve(path.checkjstring());
+        Path systemPath = f.toSystemPath();
+        boolean parents = options.get(PARENTS).toboolean();
+        LuaValue mode = options.get(MODE);
+        if (systemPath == null) {
+            if (!mode.isnil()) {
+                return ERR_NOT_SUPPORTED;
+            }
+            return parents ? mkdirsFallback(f) : mkdir(path);
+        }
+
+        FileAttribute<?>[] noAttributes = new FileAttribute<?>[0];
+        FileAttribute<?>[] attributes = mode.isnil() ? noAttributes : new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(parseMode(mode))};
+        Deque<Path> missing = new ArrayDeque<>();
+        Path current = systemPath;
+        try {
+            while (true) {
+                try {
+                    fsCreateDirectory(current, current == systemPath ? attributes : noAttributes);
+                    break;
+                } catch (FileAlreadyExistsException e) {
+                    if (!parents) {
+                        return ERR_FILE_EXISTS;
+                    }
+
+                    boolean directory;
+                    try {
+                        directory = fsReadAttributes(current).isDirectory();
+                    } catch (NoSuchFileException exc) {
+                        //A dangling link
+                        directory = false;
+                    }
+
+                    if (!directory) {
+                        return missing.isEmpty() ? ERR_FILE_EXISTS : ERR_NOT_A_DIRECTORY;
+                    }
+
+                    break;
+                } catch (NoSuchFileException e) {
+                    if (!parents) {
+                        return ERR_NO_SUCH_FILE_OR_DIR;
+                    }
+
+                    missing.push(current);
+                    current = current.getParent();
+                    if (current == null) {
+                        return ERR_NO_SUCH_FILE_OR_DIR;
+                    }
+                }
+            }
+
+            while (!missing.isEmpty()) {
+                Path dir = missing.pop();
+                try {
+                    fsCreateDirectory(dir, dir == systemPath ? attributes : noAttributes);
+                } catch (FileAlreadyExistsException e) {
+                    //Created concurrently
+                }
+            }
+        } catch (UnsupportedOperationException e) {
+            return ERR_NOT_SUPPORTED;
+        } catch (AccessDeniedException e) {
+            return ERR_PERMISSION_DENIED;
+        } catch (IOException e) {
+            return ioErr(e);
+        } finally {
+            invalidate(systemPath, false);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    /*
+     * The file system calls made by mkdir, rmdir, chdir and dir.
+     * Every call goes through one of these so the number of calls per operation can be counted.
+     * The listing done by fsWalkFileTree and the check of fsSetWorkDirectory happen inside the file system handler
+     * and each count as a single call. rmdir in optimistic mode makes its calls through {@link #newTreeDeleter(Path, boolean)}.
+     */
+
+    protected boolean fsExists(LuaPath path) {
+        return path.exists();
+    }
+
+    protected boolean fsIsDir(LuaPath path) {
+        return path.isDir();
+    }
+
+    protected void fsMkdir(LuaPath path) throws IOException {
+        path.mkdir();
+    }
+
+    protected BasicFileAttributes fsReadAttributes(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    protected void fsCreateDirectory(Path path, FileAttribute<?>... attributes) throws IOException {
+        Files.createDirectory(path, attributes);
+    }
+
+    protected DirectoryStream<Path> fsNewDirectoryStream(Path path) throws IOException {
+        return Files.newDirectoryStream(path);
+    }
+
+    protected boolean fsIsLink(LuaPath path) {
+        return path.isĹink();
+    }
+
+    protected void fsDelete(LuaPath path) throws IOException {
+        path.delete();
+    }
+
+    protected void fsWalkFileTree(LuaPath path, LuaPath.LuaFileVisitor visitor) throws IOException {
+        path.walkFileTree(Integer.MAX_VALUE, false, visitor);
+    }
+
+    protected void fsSetWorkDirectory(LuaPath path) throws IOException {
+        dirHandler.setWorkDirectory(path);
+    }
+
+    protected TreeDeleter newTreeDeleter(Path root, boolean parallel) {
+        return new TreeDeleter(root, parallel);
+    }
+
+    protected Varargs mkdirsFallback(LuaPath f) {
+        if (f.isDir()) {
+            return LuaValue.TRUE;
+        }
+
+        LuaPath parent = f.parent();
+        if (parent != null) {
+            Varargs result = mkdirsFallback(parent);
+            if (result != LuaValue.TRUE) {
+                return result;
+            }
+        }
+
+        try {
+            f.mkdir();
+        } catch (IOException e) {
+            if (!f.isDir()) {
+                return ioErr(e);
+            }
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    /**
+     * A number is the mode bits, a string of octal digits like "755" is parsed as octal, anything else as "rwxr-xr-x".
+     * isnumber() is not used because it is also true for numeric strings.
+     */
+    protected static Set<PosixFilePermission> parseMode(LuaValue mode) {
+        if (mode.type() == LuaValue.TNUMBER) {
+            return modeBits(mode.checkint());
+        }
+
+        String string = mode.checkjstring();
+        if (string.matches("[0-7]{1,4}")) {
+            return modeBits(Integer.parseInt(string, 8));
+        }
+
+        try {
+            return PosixFilePermissions.fromString(string);
+        } catch (IllegalArgumentException e) {
+            throw new LuaError("invalid mode '" + string + "'");
+        }
+    }
+
+    protected static Set<PosixFilePermission> modeBits(int bits) {
+        Set<PosixFilePermission> result = EnumSet.noneOf(PosixFilePermission.class);
+        //PosixFilePermission is declared in the order of the bits from 0400 to 0001
+        PosixFilePermission[] values = PosixFilePermission.values();
+        for (int i = 0; i < values.length; i++) {
+            if ((bits & (0400 >> i)) != 0) {
+                result.add(values[i]);
+            }
+        }
+        return result;
+    }
+
+    protected Varargs rmdir(LuaValue path) {
+        LuaPath f = resolve(path.checkjstring());
+        Path systemPath = optimistic ? f.toSystemPath() : null;
+        if (systemPath != null) {
+            try {
+                if (!fsReadAttributes(systemPath).isDirectory()) {
+                    return err("Not a directory", 20);
+                }
+            } catch (NoSuchFileException e) {
+                return err(NO_SUCH_FILE_OR_DIRECTORY, 2);
+            } catch (IOException e) {
+                return ioErr(e);
+            }
+
+            try {
+                newTreeDeleter(systemPath, false).run();
+            } catch (IOException e) {
+                return ioErr(e);
+            } finally {
+                invalidate(systemPath, true);
+            }
+
+            return LuaValue.TRUE;
+        }
+
+        if (!fsExists(f)) {
+            return err(NO_SUCH_FILE_OR_DIRECTORY, 2);
+        }
+
+        if (!fsIsDir(f)) {
+            return err("Not a directory", 20);
+        }
+
+        try {
+            fsWalkFileTree(f, new LuaPath.LuaFileVisitor() {
+
+                @Override
+                public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
+                    if (fsIsLink(dir)) {
+                        fsDelete(dir);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(LuaPath dir) throws IOException {
+                    fsDelete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
+                    fsDelete(dir);
+                    return FileVisitResult.CONTINUE;
+
+                }
+            });
+        } catch (IOException e) {
+            return ioErr(e);
+        } finally {
+            invalidate(f, true);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    /**
+     * lfs.rmdir(path, options)
+     * Deletes the directory tree using a {@link TreeDeleter}.
+     * If options.parallel is true subdirectories are deleted concurrently on the worker pool.
+     * If options.progress is a function it is called with the number of deleted entries about every 100ms,
+     * returning false or "stop" cancels the deletion.
+     * Returns true and the number of deleted entries.
+     */
+    protected Varargs rmdir(LuaValue path, LuaValue options) {
+        LuaPath f = resolve(path.checkjstring());
+        Path systemPath = f.toSystemPath();
+        if (systemPath == null) {
+            return rmdir(path);
+        }
+
+        //The deleter opens the root itself, a missing root or a file fail there.
+        boolean parallel = options.get(PARALLEL).toboolean();
+        LuaValue progress = options.get(PROGRESS);
+        TreeDeleter deleter = newTreeDeleter(systemPath, parallel);
+        try {
+            if (!parallel && progress.isnil()) {
+                deleter.run();
+            } else {
+                awaitDeletion(deleter, deleter.submit(getWorkerPool()), progress);
+            }
+        } catch (IOException e) {
+            return fileErr(e);
+        } finally {
+            invalidate(f, true);
+        }
+
+        if (deleter.isCancelled()) {
+            return ERR_CANCELED;
+        }
+
+        IOException error = deleter.getError();
+        if (error != null) {
+            return fileErr(error);
+        }
+
+        return LuaValue.varargsOf(LuaValue.TRUE, LuaValue.valueOf(deleter.getDeleted()));
+    }
+
+    /**
+     * Waits for the deletion calling the progress function in the lua thread.
+     */
+    protected void awaitDeletion(TreeDeleter deleter, ForkJoinTask<?> task, LuaValue progress) {
+        try {
+            while (true) {
+                try {
+                    task.get(PROGRESS_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (progress.isnil() || deleter.isCancelled()) {
+                        continue;
+                    }
+
+                    LuaValue result = progress.call(LuaValue.valueOf(deleter.getDeleted()));
+                    if (result == LuaValue.FALSE || STOP.raweq(result)) {
+                        deleter.cancel();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            deleter.cancel();
+            task.quietlyJoin();
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new LuaError(e.getCause());
+        } catch (RuntimeException e) {
+            //LuaError from progress
+            deleter.cancel();
+            task.quietlyJoin();
+            throw e;
+        }
+    }
+
+    /**
+     * lfs.walk(root, callback, options)
+     * Calls callback(path, mode, depth) for root and every entry below it.
+     * Returning false from the callback skips the subtree of a directory, returning "stop" ends the walk.
+     */
+    protected Varargs walk(Varargs args) {
+        String npath = args.checkjstring(1);
+        LuaValue callback = args.checkfunction(2);
+        LuaValue options = args.arg(3);
+
+        int maxDepth = Integer.MAX_VALUE;
+        boolean follow = false;
+        if (options.istable()) {
+            maxDepth = options.get(MAXDEPTH).optint(Integer.MAX_VALUE);
+            follow = options.get(FOLLOW).toboolean();
+        }
+
+        if (maxDepth < 0) {
+            return ERR_ILLEGAL_ARGUMENTS;
+        }
+
+        LuaPath root = resolve(npath);
+        if (options.istable() && options.get(PARALLEL).toboolean()) {
+            Path systemPath = root.toSystemPath();
+            if (systemPath != null) {
+                return walkParallel(stripSeparator(npath), systemPath, callback, maxDepth, follow, options.get(ORDERED).toboolean());
+            }
+        }
+
+        if (!root.exists()) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        }
+
+        try {
+            root.walkFileTree(maxDepth, follow, new WalkVisitor(stripSeparator(npath), callback, follow));
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    /**
+     * lfs.walk with parallel = true. The callback is still called on the lua thread.
+     * Returning false skips the subtree, parts of it may already have been read by then but they are not reported.
+     * Returns true and the number of entries that could not be read.
+     */
+    protected Varargs walkParallel(String base, Path root, LuaValue callback, int maxDepth, boolean follow, boolean ordered) {
+        ParallelTreeWalker walker = new ParallelTreeWalker(getWorkerPool(), metadataReader());
+        walker.setMaxDepth(maxDepth);
+        walker.setFollow(follow);
+        walker.setOrdered(ordered);
+
+        ParallelTreeWalker.Result result;
+        try {
+            result = walker.walk(root);
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        try {
+            ParallelTreeWalker.Entry entry;
+            while ((entry = result.next()) != null) {
+                String path = entry.path.isEmpty() ? base : childPath(base, entry.path);
+                LuaValue ret = callback.invoke(LuaValue.varargsOf(LuaValue.valueOf(path), entry.mode, LuaValue.valueOf(entry.depth))).arg1();
+                if (STOP.raweq(ret)) {
+                    break;
+                }
+
+                if (ret.isboolean() && !ret.toboolean()) {
+                    result.skip();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new LuaError("interrupted");
+        } finally {
+            result.cancel();
+        }
+
+        return LuaValue.varargsOf(LuaValue.TRUE, LuaValue.valueOf(result.getErrors().size()));
+    }
+
+    /**
+     * lfs.du(path, options)
+     * Sums up the apparent size and the disk usage of everything below path, files with more than one hard link are only counted once.
+     * options.depth (default 1) is the number of levels for which the totals are also split by child,
+     * options.parallel reads the tree on the worker pool, options.xdev does not descend into other file systems
+     * and options.follow follows symbolic links.
+     * Returns a table {size, usage, files, directories, errors, children = {name = {size, usage, files, directories, children}}}.
+     */
+    protected Varargs du(LuaValue path, LuaValue options) {
+        if (!options.isnil()) {
+            options.checktable();
+        }
+
+        LuaPath root = resolve(path);
+        Path systemPath = root.toSystemPath();
+        if (systemPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        int depth = options.isnil() ? 1 : options.get(DEPTH).optint(1);
+        if (depth < 0) {
+            return ERR_ILLEGAL_ARGUMENTS;
+        }
+
+        final DiskUsage usage = new DiskUsage(depth);
+        int errors;
+        try {
+            errors = walkTree(systemPath, options, new ParallelTreeWalker.Visitor() {
+                @Override
+                public void visit(ParallelTreeWalker.Entry entry) {
+                    usage.add(entry);
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        LuaTable table = usage.root.toTable();
+        table.rawset(ERRORS, LuaValue.valueOf(errors));
+        return table;
+    }
+
+    /**
+     * Visits every entry below root (including root) in the calling thread.
+     * options.parallel reads the tree on the worker pool, options.xdev and options.follow are passed to the {@link ParallelTreeWalker}.
+     * Returns the number of entries that could not be read.
+     */
+    protected int walkTree(Path root, LuaValue options, ParallelTreeWalker.Visitor visitor) throws IOException {
+        ParallelTreeWalker walker = new ParallelTreeWalker(getWorkerPool(), metadataReader());
+        if (!options.isnil()) {
+            options.checktable();
+            walker.setXdev(options.get(XDEV).toboolean());
+            walker.setFollow(options.get(FOLLOW).toboolean());
+        }
+
+        if (options.isnil() || !options.get(PARALLEL).toboolean()) {
+            return walker.walkSequential(root, visitor).getErrors().size();
+        }
+
+        ParallelTreeWalker.Result result = walker.walk(root);
+        try {
+            ParallelTreeWalker.Entry entry;
+            while ((entry = result.next()) != null) {
+                visitor.visit(entry);
+            }
+        } catch (InterruptedException e) {
+            throw new LuaError("interrupted");
+        } finally {
+            result.cancel();
+        }
+
+        return result.getErrors().size();
+    }
+
+    /**
+     * lfs.snapshot(root, options)
+     * Records path, mode, size, modification time and inode of every entry below root in a {@link Snapshot}.
+     * options.parallel, options.xdev and options.follow behave like in lfs.du.
+     * Returns the snapshot and the number of entries that could not be read.
+     */
+    protected Varargs snapshot(LuaValue path, LuaValue options) {
+        LuaPath root = resolve(path);
+        Path systemPath = root.toSystemPath();
+        if (systemPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        final Snapshot.Builder builder = new Snapshot.Builder();
+        int errors;
+        try {
+            errors = walkTree(systemPath, options, new ParallelTreeWalker.Visitor() {
+                @Override
+                public void visit(ParallelTreeWalker.Entry entry) {
+                    if (!entry.path.isEmpty()) {
+                        builder.add(entry.path, snapshotMode(entry.mode), entry.size, entry.mtime, entry.ctime, entry.ino);
+                    }
+                }
+            });
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        return LuaValue.varargsOf(new snapshot_userdata(builder.build()), LuaValue.valueOf(errors));
+    }
+
+    /**
+     * Modes as stored in a {@link Snapshot}, the index is the stored byte. Must match {@link Snapshot#MODE_FILE} and {@link Snapshot#MODE_DIRECTORY}.
+     */
+    protected static final LuaValue[] SNAPSHOT_MODES = {FILE, DIRECTORY, LINK, SOCKET, NAMED_PIPE, CHAR_DEVICE, BLOCK_DEVICE, OTHER};
+
+    protected static byte snapshotMode(LuaValue mode) {
+        for (int i = 0; i < SNAPSHOT_MODES.length; i++) {
+            if (SNAPSHOT_MODES[i] == mode) {
+                return (byte) i;
+            }
+        }
+
+        return (byte) (SNAPSHOT_MODES.length - 1);
+    }
+
+    protected static final LuaValue[] DIFF_KINDS = {LuaValue.valueOf("added"), LuaValue.valueOf("removed"), LuaValue.valueOf("modified")};
+
+    /**
+     * lfs.diff(old, new)
+     * Returns an iterator over the differences of two snapshots in path order,
+     * every call returns the kind ("added", "removed" or "modified"), the relative path and the mode.
+     */
+    protected Varargs diff(LuaValue from, LuaValue to) {
+        return newDiffIterator(checkSnapshot(from, 1), checkSnapshot(to, 2));
+    }
+
+    protected static Snapshot checkSnapshot(LuaValue value, int argument) {
+        if (!(value instanceof snapshot_userdata)) {
+            throw new LuaError("bad argument #" + argument + " (snapshot expected, got " + value.typename() + ")");
+        }
+
+        return (Snapshot) value.touserdata();
+    }
+
+    protected static LuaValue newDiffIterator(Snapshot from, Snapshot to) {
+        final Snapshot.Diff diff = new Snapshot.Diff(from, to);
+        return new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                if (!diff.next()) {
+                    return LuaValue.NIL;
+                }
+
+                Snapshot snapshot = diff.snapshot();
+                int index = diff.index();
+                return LuaValue.varargsOf(DIFF_KINDS[diff.kind()],
+                        LuaString.valueOf(snapshot.pathBytes(), snapshot.pathOffset(index), snapshot.pathLength(index)),
+                        SNAPSHOT_MODES[snapshot.mode(index)]);
+            }
+        };
+    }
+
+    /**
+     * lfs.index_open(root, indexFile, options)
+     * Loads the {@link MetadataIndex} of root stored in indexFile, rescans the tree and stores the result.
+     * Only directories that changed since the stored scan are listed again unless options.full is true.
+     * index:changes() returns an iterator like lfs.diff over the changes found by the last scan,
+     * index:refresh(options) scans and stores again and returns the iterator over the new changes,
+     * index:snapshot() returns the snapshot of the last scan and index:errors() the number of entries that could not be read.
+     */
+    protected Varargs index_open(LuaValue path, LuaValue indexFile, LuaValue options) {
+        Path root = resolve(path).toSystemPath();
+        Path file = resolve(indexFile).toSystemPath();
+        if (root == null || file == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        MetadataIndex index = new MetadataIndex(root, file, metadataReader()) {
+            @Override
+            protected byte mode(ParallelTreeWalker.Entry entry) {
+                return snapshotMode(entry.mode);
+            }
+        };
+
+        try {
+            index.load();
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        Varargs error = indexScan(index, options);
+        if (error != null) {
+            return error;
+        }
+
+        return new index_userdata(index);
+    }
+
+    /**
+     * Scans and saves the index, returns null or the error.
+     */
+    protected Varargs indexScan(MetadataIndex index, LuaValue options) {
+        try {
+            index.scan(!options.isnil() && options.get(FULL).toboolean());
+            index.save();
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (NotDirectoryException e) {
+            return ERR_NOT_A_DIRECTORY;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        return null;
+    }
+
+    protected static MetadataIndex checkIndex(LuaValue value) {
+        return (MetadataIndex) value.checkuserdata(MetadataIndex.class);
+    }
+
+    protected final LuaTable INDEX_METHODS = new LuaTable();
+    {
+        INDEX_METHODS.rawset(LuaValue.valueOf("changes"), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                MetadataIndex index = checkIndex(args.arg1());
+                return newDiffIterator(index.getPrevious(), index.getSnapshot());
+            }
+        });
+
+        INDEX_METHODS.rawset(LuaValue.valueOf("refresh"), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                MetadataIndex index = checkIndex(args.arg1());
+                Varargs error = indexScan(index, args.arg(2));
+                if (error != null) {
+                    return error;
+                }
+                return newDiffIterator(index.getPrevious(), index.getSnapshot());
+            }
+        });
+
+        INDEX_METHODS.rawset(SNAPSHOT, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return new snapshot_userdata(checkIndex(args.arg1()).getSnapshot());
+            }
+        });
+
+        INDEX_METHODS.rawset(ERRORS, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return LuaValue.valueOf(checkIndex(args.arg1()).getErrors());
+            }
+        });
+    }
+
+    protected class index_userdata extends LuaUserdata {
+        public index_userdata(MetadataIndex index) {
+            super(index);
+        }
+
+        @Override
+        public LuaValue get(LuaValue key) {
+            LuaValue method = INDEX_METHODS.rawget(key);
+            if (!method.isnil()) {
+                return method;
+            }
+
+            return super.get(key);
+        }
+    }
+
+    protected static final int GLOB_CACHE_SIZE = 64;
+
+    /**
+     * Compiled patterns of lfs.glob by the LuaString they were given as.
+     */
+    private final LinkedHashMap<LuaString, Glob> globCache = new LinkedHashMap<LuaString, Glob>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<LuaString, Glob> eldest) {
+            return size() > GLOB_CACHE_SIZE;
+        }
+    };
+
+    protected boolean globCaseInsensitive() {
+        return false;
+    }
+
+    protected Glob compileGlob(LuaString pattern) {
+        synchronized (globCache) {
+            Glob glob = globCache.get(pattern);
+            if (glob != null) {
+                return glob;
+            }
+        }
+
+        Glob glob;
+        try {
+            glob = Glob.compile(pattern.tojstring(), globCaseInsensitive());
+        } catch (IllegalArgumentException e) {
+            throw new LuaError("bad argument #1 (" + e.getMessage() + ")");
+        }
+
+        synchronized (globCache) {
+            globCache.put(pattern, glob);
+        }
+
+        return glob;
+    }
+
+    /**
+     * lfs.glob(pattern, options)
+     * Returns an iterator over the paths matching pattern, the paths start with the pattern's literal leading directories as written.
+     * Relative patterns are resolved against the current work directory, symlinks to directories are only followed if options.follow is true.
+     * A pattern that ends with a separator only matches directories.
+     */
+    protected Varargs glob(LuaValue pattern, LuaValue options) {
+        Glob glob = compileGlob(pattern.checkstring());
+        final String prefix = glob.getPrefix();
+        Path base = resolve(prefix.isEmpty() ? "." : prefix).toSystemPath();
+        if (base == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        boolean follow = false;
+        if (!options.isnil()) {
+            options.checktable();
+            follow = options.get(FOLLOW).toboolean();
+        }
+
+        final Glob.Walk walk = glob.walk(base, follow);
+        final boolean separator = !prefix.isEmpty() && !Glob.isSeparator(prefix.charAt(prefix.length() - 1));
+        return new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                String next = walk.next();
+                if (next == null) {
+                    return LuaValue.NIL;
+                }
+
+                if (prefix.isEmpty()) {
+                    return LuaValue.valueOf(next);
+                }
+
+                if (next.isEmpty()) {
+                    return LuaValue.valueOf(prefix);
+                }
+
+                return LuaValue.valueOf(separator ? prefix + File.separator + next : prefix + next);
+            }
+        };
+    }
+
+    protected static final LuaValue SNAPSHOT_LEN = new VarArgFunction() {
+        @Override
+        public Varargs invoke(Varargs args) {
+            return LuaValue.valueOf(checkSnapshot(args.arg1(), 1).size());
+        }
+    };
+
+    protected static class snapshot_userdata extends LuaUserdata {
+        public snapshot_userdata(Snapshot snapshot) {
+            super(snapshot);
+        }
+
+        @Override
+        public LuaValue get(LuaValue key) {
+            if (LEN.eq_b(key)) {
+                return SNAPSHOT_LEN;
+            }
+
+            return super.get(key);
+        }
+    }
+
+    /**
+     * Totals of a subtree for lfs.du.
+     */
+    protected static class DiskUsage {
+        protected final int depth;
+        protected final Node root = new Node();
+        protected final Set<Object> seen = new HashSet<>();
+
+        protected DiskUsage(int depth) {
+            this.depth = depth;
+        }
+
+        protected void add(ParallelTreeWalker.Entry entry) {
+            if (!entry.directory && entry.nlink != 1 && entry.fileKey != null && !seen.add(entry.fileKey)) {
+                //Another hard link to a file that was already counted
+                return;
+            }
+
+            long size = entry.size;
+            long usage = entry.blocks < 0 ? entry.size : entry.blocks * 512;
+            root.add(entry.directory, size, usage);
+
+            Node node = root;
+            String path = entry.path;
+            int start = 0;
+            for (int level = 0; level < depth && start < path.length(); level++) {
+                int end = path.indexOf(File.separatorChar, start);
+                if (end < 0) {
+                    end = path.length();
+                }
+
+                node = node.child(path.substring(start, end));
+                node.add(entry.directory, size, usage);
+                start = end + 1;
+            }
+        }
+
+        protected static class Node {
+            protected long size;
+            protected long usage;
+            protected long files;
+            protected long directories;
+            protected Map<String, Node> children;
+
+            protected void add(boolean directory, long size, long usage) {
+                this.size += size;
+                this.usage += usage;
+                if (directory) {
+                    directories++;
+                } else {
+                    files++;
+                }
+            }
+
+            protected Node child(String name) {
+                if (children == null) {
+                    children = new HashMap<>();
+                }
+
+                Node child = children.get(name);
+                if (child == null) {
+                    child = new Node();
+                    children.put(name, child);
+                }
+
+                return child;
+            }
+
+            protected LuaTable toTable() {
+                LuaTable table = new LuaTable(0, 6);
+                table.rawset(SIZE, LuaValue.valueOf(size));
+                table.rawset(USAGE, LuaValue.valueOf(usage));
+                table.rawset(FILES, LuaValue.valueOf(files));
+                table.rawset(DIRECTORIES, LuaValue.valueOf(directories));
+                if (children != null) {
+                    LuaTable childTable = new LuaTable(0, children.size());
+                    for (Map.Entry<String, Node> child : children.entrySet()) {
+                        childTable.rawset(LuaValue.valueOf(child.getKey()), child.getValue().toTable());
+                    }
+                    table.rawset(CHILDREN, childTable);
+                }
+
+                return table;
+            }
+        }
+    }
+
+    protected String stripSeparator(String path) {
+        int len = path.length();
+        while (len > 1 && (path.charAt(len-1) == '/' || path.charAt(len-1) == File.separatorChar)) {
+            len--;
+        }
+
+        return path.substring(0, len);
+    }
+
+    /**
+     * Appends name to a path returned by {@link #stripSeparator(String)}, which keeps the separator of a root like "/".
+     */
+    protected static String childPath(String base, String name) {
+        if (!base.isEmpty() && (base.charAt(base.length()-1) == '/' || base.charAt(base.length()-1) == File.separatorChar)) {
+            return base + name;
+        }
+
+        return base + File.separator + name;
+    }
+
+    protected class WalkVisitor implements LuaPath.LuaFileVisitor {
+        protected final String root;
+        protected final LuaValue callback;
+        protected final boolean follow;
+        protected final List<String> stack = new ArrayList<>();
+        protected final Set<Object> visited = new HashSet<>();
+
+        protected WalkVisitor(String root, LuaValue callback, boolean follow) {
+            this.root = root;
+            this.callback = callback;
+            this.follow = follow;
+        }
+
+        protected String path(LuaPath path) {
+            if (stack.isEmpty()) {
+                return root;
+            }
+
+            return childPath(stack.get(stack.size()-1), path.name());
+        }
+
+        protected FileVisitResult call(String path, LuaValue mode) {
+            LuaValue result = callback.invoke(LuaValue.varargsOf(LuaValue.valueOf(path), mode, LuaValue.valueOf(stack.size()))).arg1();
+            if (STOP.raweq(result)) {
+                return FileVisitResult.TERMINATE;
+            }
+
+            if (result.isboolean() && !result.toboolean()) {
+                return FileVisitResult.SKIP_SUBTREE;
+            }
+
+            return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
+            String path = path(dir);
+            if (!follow && dir.isĹink()) {
+                FileVisitResult result = call(path, LINK);
+                return result == FileVisitResult.TERMINATE ? result : FileVisitResult.SKIP_SUBTREE;
+            }
+
+            if (follow) {
+                Object key = fileKey(dir);
+                if (key != null && !visited.add(key)) {
+                    //Link loop or directory reachable through more than one link.
+                    FileVisitResult result = call(path, DIRECTORY);
+                    return result == FileVisitResult.TERMINATE ? result : FileVisitResult.SKIP_SUBTREE;
+                }
+            }
+
+            FileVisitResult result = call(path, DIRECTORY);
+            if (result == FileVisitResult.CONTINUE) {
+                stack.add(path);
+            }
+
+            return result;
+        }
+
+        @Override
+        public FileVisitResult visitFile(LuaPath file) throws IOException {
+            FileVisitResult result = call(path(file), entryMode(file, follow));
+            return result == FileVisitResult.SKIP_SUBTREE ? FileVisitResult.CONTINUE : result;
+        }
+
+        @Override
+        public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
+            if (!stack.isEmpty()) {
+                stack.remove(stack.size()-1);
+            }
+
+            return FileVisitResult.CONTINUE;
+        }
+    }
+
+    /**
+     * Returns the mode of the path or nil if it cannot be determined.
+     */
+    protected LuaValue entryMode(LuaPath path, boolean follow) {
+        try {
+            return mapStatMode(follow ? path.attributes() : path.linkAttributes());
+        } catch (IOException e) {
+            return LuaValue.NIL;
+        }
+    }
+
+    /**
+     * Returns an object that uniquely identifies the file (dev/ino) or null if that is not possible.
+     */
+    protected Object fileKey(LuaPath path) {
+        try {
+            return path.attributes().fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    protected static class FileKey {
+        protected final long dev;
+        protected final long ino;
+
+        public FileKey(long dev, long ino) {
+            this.dev = dev;
+            this.ino = ino;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            FileKey fileKey = (FileKey) o;
+            return dev == fileKey.dev && ino == fileKey.ino;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (dev ^ (dev >>> 32));
+            result = 31 * result + (int) (ino ^ (ino >>> 32));
+            return result;
+        }
+    }
+
+    /**
+     * lfs.opendir(path)
+     * Returns a handle of the directory. All methods take names relative to the directory:
+     * handle:attributes(name, ...), handle:symlinkattributes(name, ...) same as lfs.attributes
+     * handle:mkdir(name), handle:remove(name) (file, link or empty directory)
+     * handle:dir(options) same as lfs.dir on the directory
+     * handle:opendir(name) handle of a subdirectory
+     * handle:path(name) the path to use with other functions such as io.open
+     * handle:close()
+     */
+    protected Varargs opendir(LuaValue path) {
+        String npath = path.checkjstring();
+        LuaPath ff = resolve(npath);
+        Path systemPath = ff.toSystemPath();
+        if (systemPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        if (!ff.exists()) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        }
+
+        if (!ff.isDir()) {
+            return err("Not a directory", 20);
+        }
+
+        DirectoryHandle handle;
+        try {
+            handle = new DirectoryHandle(systemPath);
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        return newDirHandle(stripSeparator(npath), handle);
+    }
+
+    protected LuaValue newDirHandle(String base, DirectoryHandle handle) {
+        configureDirHandle(handle);
+        dir_handle_object obj = new dir_handle_object(base, handle);
+        dir_handle_userdata userdata = new dir_handle_userdata(obj);
+        obj.cleaner = new dir_handle_cleaner(userdata, handle);
+        return userdata;
+    }
+
+    /**
+     * Called for every new handle, for example to enable fd relative paths.
+     */
+    protected void configureDirHandle(DirectoryHandle handle) {
+        //NOOP
+    }
+
+    /**
+     * Stat of name relative to the handle. Must return the same types as {@link #statPath(LuaPath, boolean)}.
+     */
+    protected Object statAt(DirectoryHandle handle, Path name, boolean follow) {
+        try {
+            return handle.readAttributes(name, follow);
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+    }
+
+    protected static dir_handle_object checkDirHandle(LuaValue value) {
+        dir_handle_object obj = (dir_handle_object) value.checkuserdata(dir_handle_object.class);
+        if (obj.cleaner.get() == null) {
+            throw new LuaError("bad self (closed directory handle)");
+        }
+
+        return obj;
+    }
+
+    protected static Path handleName(dir_handle_object obj, LuaValue name) {
+        return obj.handle.getPath().getFileSystem().getPath(name.checkjstring());
+    }
+
+    protected Varargs handleAttributes(Varargs args, boolean follow) {
+        dir_handle_object obj = checkDirHandle(args.arg1());
+        return mapStat(args.subargs(3), statAt(obj.handle, handleName(obj, args.arg(2)), follow));
+    }
+
+    protected Varargs handleMkdir(Varargs args) {
+        dir_handle_object obj = checkDirHandle(args.arg1());
+        Path name = handleName(obj, args.arg(2));
+        try {
+            obj.handle.createDirectory(name);
+        } catch (FileAlreadyExistsException e) {
+            return ERR_FILE_EXISTS;
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (IOException e) {
+            return ioErr(e);
+        } finally {
+            invalidate(obj.handle.getPath().resolve(name), false);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    protected Varargs handleRemove(Varargs args) {
+        dir_handle_object obj = checkDirHandle(args.arg1());
+        Path name = handleName(obj, args.arg(2));
+        try {
+            obj.handle.delete(name);
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (DirectoryNotEmptyException e) {
+            return err("Directory not empty", 39);
+        } catch (IOException e) {
+            return ioErr(e);
+        } finally {
+            invalidate(obj.handle.getPath().resolve(name), false);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    protected Varargs handleDir(Varargs args) {
+        dir_handle_object obj = checkDirHandle(args.arg1());
+        dir_object dir;
+        try {
+            dir = newDirObject(obj.handle.getPath(), obj.handle.newDirectoryStream());
+        } catch (IOException e) {
+            throw new LuaError("cannot open " + obj.base + ": I/O error");
+        }
+
+        return newDirIterator(dir, args.arg(2));
+    }
+
+    protected Varargs handleOpendir(Varargs args) {
+        dir_handle_object obj = checkDirHandle(args.arg1());
+        String name = args.checkjstring(2);
+        DirectoryHandle handle;
+        try {
+            handle = obj.handle.openDirectory(handleName(obj, args.arg(2)));
+        } catch (NotDirectoryException e) {
+            return ERR_NOT_A_DIRECTORY;
+        } catch (IOException e) {
+            return fileErr(e);
+        }
+
+        return newDirHandle(childPath(obj.base, name), handle);
+    }
+
+    protected Varargs handlePath(Varargs args) {
+        dir_handle_object obj = checkDirHandle(args.arg1());
+        if (args.isnoneornil(2)) {
+            return LuaValue.valueOf(obj.base);
+        }
+
+        return LuaValue.valueOf(childPath(obj.base, args.checkjstring(2)));
+    }
+
+    protected final LuaTable DIR_HANDLE_METHODS = new LuaTable();
+    {
+        DIR_HANDLE_METHODS.rawset(ATTRIBUTES, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handleAttributes(args, true);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(SYMLINKATTRIBUTES, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handleAttributes(args, false);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(MKDIR, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handleMkdir(args);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(REMOVE, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handleRemove(args);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(DIR, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handleDir(args);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(OPENDIR, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handleOpendir(args);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(PATH, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return handlePath(args);
+            }
+        });
+
+        DIR_HANDLE_METHODS.rawset(CLOSE, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                dir_handle_object obj = (dir_handle_object) args.checkuserdata(1, dir_handle_object.class);
+                obj.cleaner.clear();
+                return LuaValue.NONE;
+            }
+        });
+    }
+
+    //must not have references to the userdata thus static important!
+    protected static class dir_handle_object {
+        protected final String base;
+        protected final DirectoryHandle handle;
+        protected dir_handle_cleaner cleaner;
+
+        protected dir_handle_object(String base, DirectoryHandle handle) {
+            this.base = base;
+            this.handle = handle;
+        }
+    }
+
+    //must not have references to anything thus static important!
+    protected static class dir_handle_cleaner extends ReferenceQueueCleaner.CleanerRef<dir_handle_userdata> {
+        private final DirectoryHandle handle;
+
+        protected dir_handle_cleaner(dir_handle_userdata referent, DirectoryHandle handle) {
+            super(referent);
+            this.handle = handle;
+        }
+
+        @Override
+        public void clean() {
+            try {
+                handle.close();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+    }
+
+    protected class dir_handle_userdata extends LuaUserdata {
+        public dir_handle_userdata(dir_handle_object obj) {
+            super(obj);
+        }
+
+        @Override
+        public LuaValue get(LuaValue key) {
+            LuaValue method = DIR_HANDLE_METHODS.rawget(key);
+            if (!method.isnil()) {
+                return method;
+            }
+
+            return super.get(key);
+        }
+    }
+
+    /**
+     * lfs.watch(path, options)
+     * Returns a watcher for the directory or file. If options is a table with 'recursive' set to true then
+     * all subdirectories are watched as well.
+     * watcher:poll() returns an array of {path=..., event=...} without blocking.
+     * watcher:next(timeout) returns path, event of the next event waiting up to timeout seconds (forever if nil), nil on timeout.
+     * watcher:close() releases the watcher.
+     * event is one of "create", "modify", "delete" or "overflow" (events were lost).
+     */
+    protected Varargs watch(LuaValue path, LuaValue options) {
+        String npath = path.checkjstring();
+        LuaPath ff = resolve(npath);
+        Path systemPath = ff.toSystemPath();
+        if (systemPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        if (!ff.exists()) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        }
+
+        DirectoryWatcher watcher;
+        try {
+            watcher = new DirectoryWatcher(systemPath, options.istable() && options.get(RECURSIVE).toboolean());
+        } catch (IOException e) {
+            return ioErr(e);
+        } catch (UnsupportedOperationException e) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        watch_object obj = new watch_object(stripSeparator(npath), watcher);
+        watch_object_userdata userdata = new watch_object_userdata(obj);
+        obj.cleaner = new watch_cleaner(userdata, watcher);
+        return userdata;
+    }
+
+    protected LuaValue watchEventPath(watch_object obj, DirectoryWatcher.Event event) {
+        String relative = event.path.toString();
+        if (relative.isEmpty()) {
+            return LuaValue.valueOf(obj.base);
+        }
+
+        return LuaValue.valueOf(childPath(obj.base, relative));
+    }
+
+    protected Varargs watchPoll(LuaValue watchObject) {
+        watch_object obj = (watch_object) watchObject.checkuserdata(watch_object.class);
+        if (obj.watcher.isClosed()) {
+            throw new LuaError("calling 'poll' on bad self (closed watcher)");
+        }
+
+        List<DirectoryWatcher.Event> events;
+        try {
+            events = obj.watcher.poll();
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        LuaTable result = new LuaTable(events.size(), 0);
+        for (int i = 0; i < events.size(); i++) {
+            DirectoryWatcher.Event event = events.get(i);
+            LuaTable entry = new LuaTable(0, 2);
+            entry.set(PATH, watchEventPath(obj, event));
+            entry.set(EVENT, LuaValue.valueOf(event.kind));
+            result.set(i+1, entry);
+        }
+
+        return result;
+    }
+
+    protected Varargs watchNext(LuaValue watchObject, LuaValue timeout) {
+        watch_object obj = (watch_object) watchObject.checkuserdata(watch_object.class);
+        if (obj.watcher.isClosed()) {
+            throw new LuaError("calling 'next' on bad self (closed watcher)");
+        }
+
+        long millis = timeout.isnil() ? -1 : Math.max(0, (long) (timeout.checkdouble() * 1000));
+        DirectoryWatcher.Event event;
+        try {
+            event = obj.watcher.next(millis);
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        if (event == null) {
+            return LuaValue.NIL;
+        }
+
+        return LuaValue.varargsOf(watchEventPath(obj, event), LuaValue.valueOf(event.kind));
+    }
+
+    protected final LuaValue WATCH_POLL = new VarArgFunction() {
+        @Override
+        public Varargs invoke(Varargs args) {
+            return watchPoll(args.arg1());
+        }
+    };
+
+    protected final LuaValue WATCH_NEXT = new VarArgFunction() {
+        @Override
+        public Varargs invoke(Varargs args) {
+            return watchNext(args.arg1(), args.arg(2));
+        }
+    };
+
+    protected static final LuaValue WATCH_CLOSE = new VarArgFunction() {
+        @Override
+        public Varargs invoke(Varargs args) {
+            watch_object obj = (watch_object) args.checkuserdata(1, watch_object.class);
+            obj.cleaner.clear();
+            return LuaValue.NONE;
+        }
+    };
+
+    //must not have references to the userdata thus static important!
+    protected static class watch_object {
+        protected final String base;
+        protected final DirectoryWatcher watcher;
+        protected watch_cleaner cleaner;
+
+        protected watch_object(String base, DirectoryWatcher watcher) {
+            this.base = base;
+            this.watcher = watcher;
+        }
+    }
+
+    //must not have references to anything thus static important!
+    protected static class watch_cleaner extends ReferenceQueueCleaner.CleanerRef<watch_object_userdata> {
+        private final DirectoryWatcher watcher;
+
+        protected watch_cleaner(watch_object_userdata referent, DirectoryWatcher watcher) {
+            super(referent);
+            this.watcher = watcher;
+        }
+
+        @Override
+        public void clean() {
+            watcher.close();
+        }
+    }
+
+    private static final LuaValue POLL = LuaValue.valueOf("poll");
+
+    protected class watch_object_userdata extends LuaUserdata {
+        public watch_object_userdata(watch_object obj) {
+            super(obj);
+        }
+
+        @Override
+        public LuaValue get(LuaValue key) {
+            if (POLL.eq_b(key)) {
+                return WATCH_POLL;
+            } else if (NEXT.eq_b(key)) {
+                return WATCH_NEXT;
+            } else if (CLOSE.eq_b(key)) {
+                return WATCH_CLOSE;
+            } else {
+                return super.get(key);
+            }
+        }
+    }
+
+    /**
+     * lfs.mmap(path, mode, offset, len)
+     * Maps len bytes (everything up to the end of the file if nil) of the file starting at offset (0 if nil) into memory.
+     * mode must be nil or "r", mappings are always read only.
+     * The returned object offers :sub(i, j), :byte(i, j), :find(str, init), :len() and :close() which behave like
+     * the string functions of the same name, find only does plain searches. Only the requested slices are copied into lua strings.
+     * The mapping is released by close or once the object is garbage collected.
+     */
+    protected Varargs mmap(LuaValue path, LuaValue mode, LuaValue offset, LuaValue len) {
+        if (!mode.isnil() && !"r".equals(mode.checkjstring())) {
+            throw new LuaError("bad argument #2 to 'mmap' (invalid mode '" + mode.tojstring() + "')");
+        }
+
+        LuaPath ff = resolve(path);
+        Path systemPath = ff.toSystemPath();
+        if (systemPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        long start = offset.isnil() ? 0 : offset.checklong();
+        if (start < 0) {
+            return ERR_ILLEGAL_ARGUMENTS;
+        }
+
+        MappedFile file;
+        try {
+            if (Files.isDirectory(systemPath)) {
+                return ERR_IS_A_DIRECTORY;
+            }
+            file = MappedFile.map(systemPath, start, len.isnil() ? -1 : len.checklong());
+        } catch (NoSuchFileException e) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        } catch (AccessDeniedException e) {
+            return ERR_PERMISSION_DENIED;
+        } catch (IOException e) {
+            return ioErr(e);
+        }
+
+        mmap_object obj = new mmap_object(file);
+        mmap_object_userdata userdata = new mmap_object_userdata(obj);
+        obj.cleaner = new mmap_cleaner(userdata, file);
+        return userdata;
+    }
+
+    protected static MappedFile checkMapping(LuaValue value) {
+        mmap_object obj = (mmap_object) value.checkuserdata(mmap_object.class);
+        if (obj.cleaner.get() == null) {
+            throw new LuaError("bad self (closed mapping)");
+        }
+
+        return obj.file;
+    }
+
+    /**
+     * Same as the posrelat of string.sub, negative positions count from the end.
+     */
+    protected static long relativePosition(long position, long length) {
+        return position >= 0 ? position : length + position + 1;
+    }
+
+    protected static Varargs mmapSub(Varargs args) {
+        MappedFile file = checkMapping(args.arg1());
+        long length = file.length();
+        long i = Math.max(1, relativePosition(args.optlong(2, 1), length));
+        long j = Math.min(length, relativePosition(args.optlong(3, -1), length));
+        if (i > j) {
+            return LuaValue.EMPTYSTRING;
+        }
+
+        if (j - i + 1 > Integer.MAX_VALUE) {
+            throw new LuaError("bad argument to 'sub' (slice too large)");
+        }
+
+        byte[] bytes = new byte[(int) (j - i + 1)];
+        file.get(i - 1, bytes, 0, bytes.length);
+        return LuaString.valueUsing(bytes);
+    }
+
+    protected static Varargs mmapByte(Varargs args) {
+        MappedFile file = checkMapping(args.arg1());
+        long length = file.length();
+        long i = relativePosition(args.optlong(2, 1), length);
+        long j = relativePosition(args.optlong(3, i), length);
+        i = Math.max(1, i);
+        j = Math.min(length, j);
+        if (i > j) {
+            return LuaValue.NONE;
+        }
+
+        if (j - i + 1 > Integer.MAX_VALUE) {
+            throw new LuaError("bad argument to 'byte' (string slice too long)");
+        }
+
+        LuaValue[] values = new LuaValue[(int) (j - i + 1)];
+        for (int k = 0; k < values.length; k++) {
+            values[k] = LuaValue.valueOf(file.get(i - 1 + k) & 0xff);
+        }
+
+        return LuaValue.varargsOf(values);
+    }
+
+    protected static Varargs mmapFind(Varargs args) {
+        MappedFile file = checkMapping(args.arg1());
+        LuaString pattern = args.checkstring(2);
+        long length = file.length();
+        long init = Math.max(1, relativePosition(args.optlong(3, 1), length));
+        if (init > length + 1) {
+            return LuaValue.NIL;
+        }
+
+        byte[] bytes = new byte[pattern.rawlen()];
+        pattern.copyInto(0, bytes, 0, bytes.length);
+        long index = file.indexOf(bytes, init - 1);
+        if (index < 0) {
+            return LuaValue.NIL;
+        }
+
+        return LuaValue.varargsOf(LuaValue.valueOf(index + 1), LuaValue.valueOf(index + bytes.length));
+    }
+
+    protected static final LuaTable MMAP_METHODS = new LuaTable();
+    static {
+        MMAP_METHODS.rawset(LuaValue.valueOf("sub"), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return mmapSub(args);
+            }
+        });
+
+        MMAP_METHODS.rawset(LuaValue.valueOf("byte"), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return mmapByte(args);
+            }
+        });
+
+        MMAP_METHODS.rawset(LuaValue.valueOf("find"), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return mmapFind(args);
+            }
+        });
+
+        MMAP_METHODS.rawset(LEN, new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                return LuaValue.valueOf(checkMapping(args.arg1()).length());
+            }
+        });
+
+        MMAP_METHODS.rawset(LuaValue.valueOf("close"), new VarArgFunction() {
+            @Override
+            public Varargs invoke(Varargs args) {
+                mmap_object obj = (mmap_object) args.checkuserdata(1, mmap_object.class);
+                obj.cleaner.clear();
+                return LuaValue.NONE;
+            }
+        });
+    }
+
+    //must not have references to the userdata thus static important!
+    protected static class mmap_object {
+        protected final MappedFile file;
+        protected mmap_cleaner cleaner;
+
+        protected mmap_object(MappedFile file) {
+            this.file = file;
+        }
+    }
+
+    //must not have references to anything thus static important!
+    protected static class mmap_cleaner extends ReferenceQueueCleaner.CleanerRef<mmap_object_userdata> {
+        private final MappedFile file;
+
+        protected mmap_cleaner(mmap_object_userdata referent, MappedFile file) {
+            super(referent);
+            this.file = file;
+        }
+
+        @Override
+        public void clean() {
+            file.close();
+        }
+    }
+
+    protected static class mmap_object_userdata extends LuaUserdata {
+        public mmap_object_userdata(mmap_object obj) {
+            super(obj);
+        }
+
+        @Override
+        public LuaValue get(LuaValue key) {
+            LuaValue method = MMAP_METHODS.rawget(key);
+            if (!method.isnil()) {
+                return method;
+            }
+
+            return super.get(key);
+        }
+    }
+
+    protected Varargs touch(Varargs args) {
+        String npath = args.arg1().checkjstring();
+
+        long atime = args.narg() > 1 ? args.checklong(2) : TimeUnit.MILLISECONDS.toSeconds(getTimestamp());
+        long mtime = args.optlong(3, atime);
+        LuaPath ff = resolve(npath);
+
+        try {
+            ff.setFileTimes(FileTime.from(mtime, TimeUnit.SECONDS), FileTime.from(atime, TimeUnit.SECONDS), null);
+        } catch (IOException e) {
+            return ioErr(e);
+        } finally {
+            invalidate(ff, false);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    /**
+     * lfs.copy(src, dst, options)
+     * Copies the content of the file src to dst without passing it through lua strings.
+     * options.replace = false fails if dst already exists, options.preserve = true also copies the permissions and times.
+     */
+    protected Varargs copy(LuaValue src, LuaValue dst, LuaValue options) {
+        if (!options.isnil()) {
+            options.checktable();
+        }
+
+        LuaPath from = resolve(src);
+        LuaPath to = resolve(dst);
+        boolean replace = options.isnil() || !options.get(REPLACE).eq_b(LuaValue.FALSE);
+        boolean preserve = !options.isnil() && options.get(PRESERVE).toboolean();
+
+        Path fromPath = from.toSystemPath();
+        Path toPath = to.toSystemPath();
+        if (fromPath == null || toPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(fromPath, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                return ERR_IS_A_DIRECTORY;
+            }
+
+            if (attributes.isOther()) {
+                //Opening a fifo would block
+                return ERR_NOT_REGULAR_FILE;
+            }
+
+            checkCopyTarget(toPath);
+            copyFile(fromPath, toPath, attributes.size(), replace);
+            if (preserve) {
+                copyAttributes(fromPath, toPath, attributes);
+            }
+        } catch (IOException e) {
+            return fileErr(e);
+        } finally {
+            invalidate(to, false);
+        }
+
+        return LuaValue.TRUE;
+    }
+
+    /**
+     * Fails if dst exists and is not a regular file. A fifo would block when it is opened for writing.
+     */
+    protected void checkCopyTarget(Path dst) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(dst, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+
+        if (attributes.isDirectory()) {
+            throw new ErrnoException(ERR_IS_A_DIRECTORY);
+        }
+
+        if (attributes.isOther()) {
+            throw new ErrnoException(ERR_NOT_REGULAR_FILE);
+        }
+    }
+
+    protected Varargs fileErr(IOException exc) {
+        if (exc instanceof ErrnoException) {
+            return ((ErrnoException) exc).error;
+        }
+
+        if (exc instanceof TreeCopier.DestinationInsideSourceException) {
+            return ERR_ILLEGAL_ARGUMENTS;
+        }
+
+        if (exc instanceof TreeCopier.NotRegularFileException) {
+            return ERR_NOT_REGULAR_FILE;
+        }
+
+        if (exc instanceof NoSuchFileException) {
+            return ERR_NO_SUCH_FILE_OR_DIR;
+        }
+
+        if (exc instanceof NotDirectoryException) {
+            return ERR_NOT_A_DIRECTORY;
+        }
+
+        if (exc instanceof FileAlreadyExistsException) {
+            return ERR_FILE_EXISTS;
+        }
+
+        if (exc instanceof AccessDeniedException) {
+            return ERR_PERMISSION_DENIED;
+        }
+
+        if (exc instanceof FileSystemLoopException) {
+            return ERR_TOO_MANY_LINKS;
         }
+
+        return ioErr(exc);
     }
 
-    protected Varargs mkdir(LuaValue path) {
-        LuaPath f = resolve(path.checkjstring());
-        if (f.exists()) {
-            return err("File exists", 17);
+    /**
+     * lfs.copytree(src, dst, options)
+     * Copies a directory tree using a {@link TreeCopier} on the worker pool.
+     * options.symlinks is "copy" (default), "follow" or "skip", options.preserve copies permissions and times,
+     * options.replace = true merges into existing directories and overwrites existing files, options.parallel = false copies in the lua thread.
+     * Returns true and the number of copied entries, if single entries failed a third value maps their relative path to {message, code}.
+     */
+    protected Varargs copytree(LuaValue src, LuaValue dst, LuaValue options) {
+        if (!options.isnil()) {
+            options.checktable();
         }
 
-        LuaPath parent = f.parent();
+        LuaPath from = resolve(src);
+        LuaPath to = resolve(dst);
+        Path fromPath = from.toSystemPath();
+        Path toPath = to.toSystemPath();
+        if (fromPath == null || toPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
 
-        if (parent != null && !parent.exists()) {
-            return err(NO_SUCH_FILE_OR_DIRECTORY, 2);
+        TreeCopier.Links links = TreeCopier.Links.COPY;
+        final boolean replace = !options.isnil() && options.get(REPLACE).toboolean();
+        boolean preserve = !options.isnil() && options.get(PRESERVE).toboolean();
+        boolean parallel = options.isnil() || !options.get(PARALLEL).eq_b(LuaValue.FALSE);
+        if (!options.isnil() && !options.get(SYMLINKS).isnil()) {
+            try {
+                links = TreeCopier.Links.valueOf(options.get(SYMLINKS).checkjstring().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new LuaError("invalid symlinks option '" + options.get(SYMLINKS).tojstring() + "'");
+            }
         }
 
+        TreeCopier copier = new TreeCopier(fromPath, toPath, new TreeCopier.EntryCopier() {
+            @Override
+            public void copyFile(Path src, Path dst, BasicFileAttributes attributes) throws IOException {
+                if (replace) {
+                    checkCopyTarget(dst);
+                }
+                LuajLFSCommon.this.copyFile(src, dst, attributes.size(), replace);
+            }
+
+            @Override
+            public void copyAttributes(Path src, Path dst, BasicFileAttributes attributes) throws IOException {
+                LuajLFSCommon.this.copyAttributes(src, dst, attributes);
+            }
+        }, links, preserve, replace);
+        copier.setParallel(parallel);
 
         try {
-            f.mkdir();
-            return LuaValue.TRUE;
+            if (!Files.isDirectory(fromPath)) {
+                return Files.exists(fromPath) ? ERR_NOT_A_DIRECTORY : ERR_NO_SUCH_FILE_OR_DIR;
+            }
+
+            copier.copy(getWorkerPool());
         } catch (IOException e) {
-            return err(INPUT_OUTPUT_ERROR, 5);
+            return fileErr(e);
+        } finally {
+            invalidate(to, true);
         }
-    }
 
-    protected Varargs rmdir(LuaValue path) {
-        LuaPath f = resolve(path.checkjstring());
-        if (!f.exists()) {
-            return err(NO_SUCH_FILE_OR_DIRECTORY, 2);
+        LuaValue count = LuaValue.valueOf(copier.getCopied());
+        List<TreeCopier.Failure> failures = copier.getFailures();
+        if (failures.isEmpty()) {
+            return LuaValue.varargsOf(LuaValue.TRUE, count);
         }
 
-        if (!f.isDir()) {
-            return err("Not a directory", 20);
+        LuaTable errors = new LuaTable();
+        for (TreeCopier.Failure failure : failures) {
+            Varargs err = fileErr(failure.error);
+            errors.set(failure.path, LuaValue.listOf(new LuaValue[]{err.arg(2), err.arg(3)}));
         }
 
-        try {
-            f.walkFileTree(Integer.MAX_VALUE, false, new LuaPath.LuaFileVisitor() {
+        return LuaValue.varargsOf(LuaValue.TRUE, count, errors);
+    }
 
-                @Override
-                public FileVisitResult preVisitDirectory(LuaPath dir) throws IOException {
-                    if (dir.isĹink()) {
-                        dir.delete();
-                        return FileVisitResult.SKIP_SUBTREE;
-                    }
-                    return FileVisitResult.CONTINUE;
+    /**
+     * Copies the content of a regular file.
+     * Uses {@link FileChannel#transferTo} which lets the JVM hand the copy to the kernel where it can.
+     * An existing dst is truncated in place like cp does, so its owner, permissions and hard links stay intact.
+     */
+    protected void copyFile(Path src, Path dst, long size, boolean replace) throws IOException {
+        try (FileChannel in = FileChannel.open(src, StandardOpenOption.READ);
+             FileChannel out = replace ? FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+                     : FileChannel.open(dst, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)) {
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) {
+                    //File was truncated while copying
+                    break;
                 }
+                position += transferred;
+            }
+        }
+    }
 
-                @Override
-                public FileVisitResult visitFile(LuaPath dir) throws IOException {
-                    dir.delete();
-                    return FileVisitResult.CONTINUE;
-                }
+    protected void copyAttributes(Path src, Path dst, BasicFileAttributes attributes) throws IOException {
+        PosixFileAttributeView view = Files.getFileAttributeView(dst, PosixFileAttributeView.class);
+        if (view != null) {
+            view.setPermissions(Files.getPosixFilePermissions(src));
+        }
 
-                @Override
-                public FileVisitResult postVisitDirectory(LuaPath dir) throws IOException {
-                    dir.delete();
-                    return FileVisitResult.CONTINUE;
+        Files.getFileAttributeView(dst, BasicFileAttributeView.class).setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), null);
+    }
 
-                }
-            });
+    /**
+     * lfs.rename(from, to, options)
+     * Atomically renames from to to, an existing file at to is replaced like os.rename does.
+     * If options.noreplace is true the rename fails if to exists. options.exchange is not supported
+     * since neither the JVM nor the native library expose renameat2.
+     */
+    protected Varargs rename(LuaValue from, LuaValue to, LuaValue options) {
+        if (!options.isnil()) {
+            options.checktable();
+        }
+
+        LuaPath src = resolve(from);
+        LuaPath dst = resolve(to);
+        boolean noreplace = !options.isnil() && options.get(NOREPLACE).toboolean();
+        if (!options.isnil() && options.get(EXCHANGE).toboolean()) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        Path srcPath = src.toSystemPath();
+        Path dstPath = dst.toSystemPath();
+        if (srcPath == null || dstPath == null) {
+            return ERR_NOT_SUPPORTED;
+        }
+
+        try {
+            if (noreplace) {
+                renameNoReplace(srcPath, dstPath);
+            } else {
+                Files.move(srcPath, dstPath, StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (AtomicMoveNotSupportedException e) {
+            return ERR_CROSS_DEVICE;
         } catch (IOException e) {
-            return ioErr(e);
+            return fileErr(e);
+        } finally {
+            invalidate(src, true);
+            invalidate(dst, true);
         }
 
         return LuaValue.TRUE;
     }
 
-    protected Varargs touch(Varargs args) {
-        String npath = args.arg1().checkjstring();
+    /**
+     * Files are hard linked to the new name and then unlinked from the old one, creating the link fails atomically if the target exists.
+     * Directories cannot be hard linked, instead the target is reserved by creating it as an empty directory
+     * which the rename then atomically replaces.
+     */
+    protected void renameNoReplace(Path src, Path dst) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(src, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (attributes.isDirectory()) {
+            Files.createDirectory(dst);
+            try {
+                Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                Files.deleteIfExists(dst);
+                throw e;
+            }
+            return;
+        }
 
-        long atime = args.narg() > 1 ? args.checklong(2) : TimeUnit.MILLISECONDS.toSeconds(getTimestamp());
-        long mtime = args.optlong(3, atime);
-        LuaPath ff = resolve(npath);
+        try {
+            hardLink(src, dst);
+        } catch (UnsupportedOperationException e) {
+            //The file system does not support hard links, this is not atomic.
+            //Permission errors are real errors, falling back would silently drop the guarantee of noreplace.
+            if (Files.exists(dst, LinkOption.NOFOLLOW_LINKS)) {
+                throw new FileAlreadyExistsException(dst.toString());
+            }
+            Files.move(src, dst, StandardCopyOption.ATOMIC_MOVE);
+            return;
+        }
 
         try {
-            ff.setFileTimes(FileTime.from(mtime, TimeUnit.SECONDS), FileTime.from(atime, TimeUnit.SECONDS), null);
+            Files.delete(src);
         } catch (IOException e) {
-            return ioErr(e);
+            Files.deleteIfExists(dst);
+            throw e;
         }
+    }
 
-        return LuaValue.TRUE;
+    protected void hardLink(Path existing, Path link) throws IOException {
+        Files.createLink(link, existing);
+    }
+
+    /**
+     * Carries an already mapped error through methods that can only throw IOException.
+     */
+    protected static class ErrnoException extends IOException {
+        protected final Varargs error;
+
+        public ErrnoException(Varargs error) {
+            super(error.arg(2).tojstring());
+            this.error = error;
+        }
     }
 
-    protected Varargs dir(LuaValue path) {
+    protected Varargs dir(LuaValue path, LuaValue options) {
         String npath = path.checkjstring();
         LuaPath ff = resolve(npath);
 
-        if (!ff.exists()) {
-            throw new LuaError("cannot open " + npath + ": No such file or directory");
-        }
+        boolean checked = optimistic && ff.toSystemPath() != null;
+        if (!checked) {
+            if (!fsExists(ff)) {
+                throw new LuaError("cannot open " + npath + ": No such file or directory");
+            }
 
-        if (!ff.isDir()) {
-            throw new LuaError("cannot open " + npath + ": Not a directory");
+            if (!fsIsDir(ff)) {
+                throw new LuaError("cannot open " + npath + ": Not a directory");
+            }
         }
-        List<LuaPath> pathList;
+
+        dir_object obj;
         try {
-            pathList = ff.list();
+            obj = openDir(ff);
+        } catch (NoSuchFileException e) {
+            throw new LuaError("cannot open " + npath + ": No such file or directory");
+        } catch (NotDirectoryException e) {
+            throw new LuaError("cannot open " + npath + ": Not a directory");
         } catch (IOException e) {
             throw new LuaError("cannot open " + npath + ": I/O error");
         }
 
-        String[] listing = new String[pathList.size()];
+        return newDirIterator(obj, options);
+    }
 
-        int i = 0;
-        for (LuaPath p : pathList) {
-            listing[i++] = p.name();
+    /**
+     * Opens a lazy listing of the directory.
+     * Paths that are backed by the default file system are streamed using a {@link DirectoryStream},
+     * anything else falls back to {@link LuaPath#list()}.
+     */
+    protected dir_object openDir(LuaPath dir) throws IOException {
+        Path systemPath = dir.toSystemPath();
+        if (systemPath == null) {
+            return new dir_list_object(dir, dir.list());
         }
 
-        return LuaValue.varargsOf(DIR_NEXT, new dir_object_userdata(new dir_object(listing)));
+        return newDirObject(systemPath, fsNewDirectoryStream(systemPath));
+    }
+
+    protected dir_object newDirObject(Path dir, DirectoryStream<Path> stream) {
+        return new dir_stream_object(dir, stream);
     }
 
-    protected final LuaValue DIR_NEXT = new OneArgFunction() {
+    protected Varargs newDirIterator(dir_object obj, LuaValue options) {
+        obj.typed = options.istable() && options.get(TYPE).toboolean();
+
+        dir_object_userdata userdata = new dir_object_userdata(obj);
+        //GC Magic to close the directory if the script never exhausts or closes it
+        obj.cleaner = new dir_cleaner(userdata, obj);
+        return LuaValue.varargsOf(DIR_NEXT, userdata);
+    }
+
+    protected final LuaValue DIR_NEXT = new VarArgFunction() {
         @Override
-        public LuaValue call(LuaValue arg) {
-            return dirNext(arg);
+        public Varargs invoke(Varargs args) {
+            return dirNext(args.arg1());
         }
     };
 
@@ -457,40 +3415,245 @@ public abstract class LuajLFSCommon {
         }
     };
 
-    protected LuaValue dirNext(LuaValue dirObject) {
+    protected Varargs dirNext(LuaValue dirObject) {
         dir_object obj = (dir_object) dirObject.checkuserdata(dir_object.class);
-        if (obj.nextIndex < 0) {
-            switch (obj.nextIndex) {
-                case (-1):
-                    obj.nextIndex++;
-                    return DOT_DOT;
-                case (-2):
-                    obj.nextIndex++;
-                    return DOT;
-                default:
-                    throw new LuaError("calling 'next' on bad self (closed directory)");
-            }
+        LuaValue next;
+        switch (obj.state) {
+            case (dir_object.STATE_DOT):
+                obj.state = dir_object.STATE_DOT_DOT;
+                next = DOT;
+                break;
+            case (dir_object.STATE_DOT_DOT):
+                obj.state = dir_object.STATE_ENTRIES;
+                next = DOT_DOT;
+                break;
+            case (dir_object.STATE_ENTRIES):
+                try {
+                    next = obj.nextEntry();
+                } catch (IOException | DirectoryIteratorException e) {
+                    obj.state = dir_object.STATE_EXHAUSTED;
+                    obj.close();
+                    throw new LuaError("cannot read directory: I/O error");
+                }
+
+                if (next == null) {
+                    obj.state = dir_object.STATE_EXHAUSTED;
+                    obj.close();
+                    return LuaValue.NIL;
+                }
+                break;
+            case (dir_object.STATE_EXHAUSTED):
+                return LuaValue.NIL;
+            default:
+                throw new LuaError("calling 'next' on bad self (closed directory)");
+        }
+
+        if (!obj.typed) {
+            return next;
+        }
+
+        Path systemPath = obj.currentSystemPath(next);
+        Varargs type = systemPath != null ? direntType(systemPath) : direntType(obj.currentPath(next));
+        return LuaValue.varargsOf(next, type);
+    }
+
+    /**
+     * Returns mode and inode of a directory entry without following symlinks.
+     * Only called for typed directory iteration. Returns nil if the entry vanished in the meantime.
+     */
+    protected Varargs direntType(Path path) {
+        try {
+            return mapDirentType(Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+            return LuaValue.NIL;
+        }
+    }
+
+    protected Varargs direntType(LuaPath path) {
+        if (path == null) {
+            return LuaValue.NIL;
         }
 
-        if (obj.nextIndex >= obj.elements.length) {
+        try {
+            return mapDirentType(path.linkAttributes());
+        } catch (IOException e) {
             return LuaValue.NIL;
         }
+    }
 
-        return LuaValue.valueOf(obj.elements[obj.nextIndex++]);
+    protected Varargs mapDirentType(BasicFileAttributes attributes) {
+        return LuaValue.varargsOf(mapStatMode(attributes), LuaValue.ZERO);
+    }
+
+    protected Varargs mapDirentType(Stat stat) {
+        return LuaValue.varargsOf(mapStatMode(stat), LuaValue.valueOf(stat.getIno()));
     }
 
     protected void dirClose(LuaValue dirObject) {
         dir_object obj = (dir_object) dirObject.checkuserdata(dir_object.class);
-        obj.nextIndex = -3;
+        obj.state = dir_object.STATE_CLOSED;
+        obj.close();
+    }
+
+    //must not have references to the userdata thus static important!
+    protected static abstract class dir_object {
+        protected static final int STATE_DOT = 0;
+        protected static final int STATE_DOT_DOT = 1;
+        protected static final int STATE_ENTRIES = 2;
+        protected static final int STATE_EXHAUSTED = 3;
+        protected static final int STATE_CLOSED = 4;
+
+        protected int state = STATE_DOT;
+        protected boolean typed;
+        protected dir_cleaner cleaner;
+        private boolean released;
+
+        /**
+         * returns the next entry name or null if there are no more entries.
+         */
+        protected abstract LuaValue nextEntry() throws IOException;
+
+        /**
+         * returns the system path of the entry last returned by next or null if the listing is not backed by the default file system.
+         */
+        protected abstract Path currentSystemPath(LuaValue name);
+
+        /**
+         * returns the path of the entry last returned by next.
+         */
+        protected abstract LuaPath currentPath(LuaValue name);
+
+        /**
+         * free any resources held by the listing, only called once.
+         */
+        protected abstract void release();
+
+        protected void close() {
+            if (cleaner != null) {
+                cleaner.clear();
+                return;
+            }
+
+            free();
+        }
+
+        protected synchronized void free() {
+            if (released) {
+                return;
+            }
+
+            released = true;
+            release();
+        }
+    }
+
+    protected static class dir_stream_object extends dir_object {
+        protected final Path dir;
+        protected final DirectoryStream<Path> stream;
+        protected final Iterator<Path> iterator;
+        protected Path current;
+
+        public dir_stream_object(Path dir, DirectoryStream<Path> stream) {
+            this.dir = dir;
+            this.stream = stream;
+            this.iterator = stream.iterator();
+        }
+
+        @Override
+        protected LuaValue nextEntry() {
+            if (!iterator.hasNext()) {
+                return null;
+            }
+
+            current = iterator.next();
+            return name(current);
+        }
+
+        protected LuaValue name(Path path) {
+            return LuaValue.valueOf(path.getFileName().toString());
+        }
+
+        @Override
+        protected Path currentSystemPath(LuaValue name) {
+            if (name == DOT || name == DOT_DOT) {
+                return dir.resolve(name.tojstring());
+            }
+
+            return current;
+        }
+
+        @Override
+        protected LuaPath currentPath(LuaValue name) {
+            return null;
+        }
+
+        @Override
+        protected void release() {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                //DC
+            }
+        }
+    }
+
+    protected static class dir_list_object extends dir_object {
+        protected final LuaPath dir;
+        protected final Iterator<LuaPath> iterator;
+        protected LuaPath current;
+
+        public dir_list_object(LuaPath dir, List<LuaPath> elements) {
+            this.dir = dir;
+            this.iterator = elements.iterator();
+        }
+
+        @Override
+        protected LuaValue nextEntry() {
+            if (!iterator.hasNext()) {
+                return null;
+            }
+
+            current = iterator.next();
+            return LuaValue.valueOf(current.name());
+        }
+
+        @Override
+        protected Path currentSystemPath(LuaValue name) {
+            return null;
+        }
+
+        @Override
+        protected LuaPath currentPath(LuaValue name) {
+            if (name == DOT) {
+                return dir;
+            }
+
+            if (name == DOT_DOT) {
+                LuaPath parent = dir.parent();
+                return parent == null ? dir : parent;
+            }
+
+            return current;
+        }
+
+        @Override
+        protected void release() {
+            //NOOP
+        }
     }
 
+    //must not have references to anything thus static important!
+    protected static class dir_cleaner extends ReferenceQueueCleaner.CleanerRef<dir_object_userdata> {
+        private final dir_object object;
 
-    protected class dir_object {
-        protected final String[] elements;
-        protected int nextIndex = -2;
+        protected dir_cleaner(dir_object_userdata referent, dir_object object) {
+            super(referent);
+            this.object = object;
+        }
 
-        public dir_object(String[] elements) {
-            this.elements = elements;
+        @Override
+        public void clean() {
+            object.free();
         }
     }
 
@@ -528,18 +3691,38 @@ public abstract class LuajLFSCommon {
         String npath = path.checkjstring();
         LuaPath ff = resolve(npath);
 
-        if (!ff.exists()) {
-            return err("Unable to change working directory to '"+ npath +"'\nNo such file or directory");
-        }
+        Path systemPath = optimistic ? ff.toSystemPath() : null;
+        if (systemPath != null) {
+            try {
+                if (!fsReadAttributes(systemPath).isDirectory()) {
+                    return err("Unable to change working directory to '"+ npath +"'\nNot a directory");
+                }
+            } catch (NoSuchFileException e) {
+                return err("Unable to change working directory to '"+ npath +"'\nNo such file or directory");
+            } catch (AccessDeniedException e) {
+                return err("Unable to change working directory to '"+ npath +"'\nPermission denied");
+            } catch (FileSystemException e) {
+                //ENOTDIR if a parent is not a directory
+                return err("Unable to change working directory to '"+ npath +"'\n" + (e.getReason() != null ? e.getReason() : INPUT_OUTPUT_ERROR.tojstring()));
+            } catch (IOException e) {
+                return err("Unable to change working directory to '"+ npath +"'\n" + INPUT_OUTPUT_ERROR.tojstring());
+            }
+        } else {
+            if (!fsExists(ff)) {
+                return err("Unable to change working directory to '"+ npath +"'\nNo such file or directory");
+            }
 
-        if (!ff.isDir()) {
-            return err("Unable to change working directory to '"+ npath +"'\nNot a directory");
+            if (!fsIsDir(ff)) {
+                return err("Unable to change working directory to '"+ npath +"'\nNot a directory");
+            }
         }
 
         try {
-            dirHandler.setWorkDirectory(ff);
+            fsSetWorkDirectory(ff);
         } catch (IOException e) {
             return ioErr(e);
+        } finally {
+            clearResolveCache();
         }
 
         return LuaValue.TRUE;
@@ -654,62 +3837,56 @@ public abstract class LuajLFSCommon {
 
     protected LuaValue mapStatResult(LuaValue arg2, Stat stat) {
         if (arg2.isstring()) {
-            String str = arg2.checkjstring();
-            switch (str) {
-                case("dev"):
-                    return LuaValue.valueOf(stat.getDev());
-                case("ino"):
-                    return LuaValue.valueOf(stat.getIno());
-                case("mode"):
-                    return mapStatMode(stat);
-                case("nlink"):
-                    return LuaValue.valueOf(stat.getNlink());
-                case("uid"):
-                    return LuaValue.valueOf(stat.getUid());
-                case("gid"):
-                    return LuaValue.valueOf(stat.getGid());
-                case("rdev"):
-                    return LuaValue.valueOf(stat.getRdev());
-                case("access"):
-                    return LuaValue.valueOf(stat.getAtime());
-                case("modification"):
-                    return LuaValue.valueOf(stat.getMtime());
-                case("change"):
-                    return LuaValue.valueOf(stat.getCtime());
-                case("size"):
-                    return LuaValue.valueOf(stat.getSize());
-                case("permissions"):
-                    return LuaValue.valueOf(stat.getPermissions());
-                case("blocks"):
-                    return LuaValue.valueOf(stat.getBlocks());
-                case("blksize"):
-                    return LuaValue.valueOf(stat.getBlksize());
-                default:
-                    throw new LuaError("invalid attribute name '" + str +"'");
-            }
+            return statField(attributeIndex(arg2), stat);
         }
 
         if (!arg2.istable()) {
             arg2 = new LuaTable();
         }
 
-        arg2.set(DEV, LuaValue.valueOf(stat.getDev()));
-        arg2.set(INO, LuaValue.valueOf(stat.getIno()));
-        arg2.set(MODE, mapStatMode(stat));
-        arg2.set(NLINK, LuaValue.valueOf(stat.getNlink()));
-        arg2.set(UID, LuaValue.valueOf(stat.getUid()));
-        arg2.set(GID, LuaValue.valueOf(stat.getGid()));
-        arg2.set(RDEV, LuaValue.valueOf(stat.getRdev()));
-        arg2.set(ACCESS, LuaValue.valueOf(stat.getAtime()));
-        arg2.set(MODIFICATION, LuaValue.valueOf(stat.getMtime()));
-        arg2.set(PERMISSIONS, LuaValue.valueOf(stat.getPermissions()));
-        arg2.set(CHANGE, LuaValue.valueOf(stat.getCtime()));
-        arg2.set(SIZE, LuaValue.valueOf(stat.getSize()));
-        arg2.set(BLOCKS, LuaValue.valueOf(stat.getBlocks()));
-        arg2.set(BLKSIZE, LuaValue.valueOf(stat.getBlksize()));
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            arg2.set(ATTRIBUTE_NAMES[i], statField(i, stat));
+        }
+
         return arg2;
     }
 
+    protected LuaValue statField(int index, Stat stat) {
+        switch (index) {
+            case(ATTR_DEV):
+                return LuaValue.valueOf(stat.getDev());
+            case(ATTR_INO):
+                return LuaValue.valueOf(stat.getIno());
+            case(ATTR_MODE):
+                return mapStatMode(stat);
+            case(ATTR_NLINK):
+                return LuaValue.valueOf(stat.getNlink());
+            case(ATTR_UID):
+                return LuaValue.valueOf(stat.getUid());
+            case(ATTR_GID):
+                return LuaValue.valueOf(stat.getGid());
+            case(ATTR_RDEV):
+                return LuaValue.valueOf(stat.getRdev());
+            case(ATTR_ACCESS):
+                return LuaValue.valueOf(stat.getAtime());
+            case(ATTR_MODIFICATION):
+                return LuaValue.valueOf(stat.getMtime());
+            case(ATTR_PERMISSIONS):
+                return LuaValue.valueOf(stat.getPermissions());
+            case(ATTR_CHANGE):
+                return LuaValue.valueOf(stat.getCtime());
+            case(ATTR_SIZE):
+                return LuaValue.valueOf(stat.getSize());
+            case(ATTR_BLOCKS):
+                return LuaValue.valueOf(stat.getBlocks());
+            case(ATTR_BLKSIZE):
+                return LuaValue.valueOf(stat.getBlksize());
+            default:
+                //extended attribute that was not read
+                return LuaValue.NIL;
+        }
+    }
+
     protected LuaValue mapStatMode(BasicFileAttributes stat) {
         if (stat.isDirectory()) {
             return DIRECTORY;
@@ -728,62 +3905,105 @@ public abstract class LuajLFSCommon {
 
     protected LuaValue mapStatResult(LuaValue arg2, BasicFileAttributes stat) {
         if (arg2.isstring()) {
-            String str = arg2.checkjstring();
-            switch (str) {
-                case("dev"):
-                    return LuaValue.ZERO;
-                case("ino"):
-                    return LuaValue.ZERO;
-                case("mode"):
-                    return mapStatMode(stat);
-                case("nlink"):
-                    return LuaValue.ZERO;
-                case("uid"):
-                    return LuaValue.ZERO;
-                case("gid"):
-                    return LuaValue.ZERO;
-                case("rdev"):
-                    return LuaValue.ZERO;
-                case("access"):
-                    return LuaValue.valueOf(stat.lastAccessTime().to(TimeUnit.SECONDS));
-                case("modification"):
-                    return LuaValue.valueOf(stat.lastModifiedTime().to(TimeUnit.SECONDS));
-                case("change"):
-                    return LuaValue.valueOf(stat.lastModifiedTime().to(TimeUnit.SECONDS));
-                case("size"):
-                    return LuaValue.valueOf(stat.size());
-                case("permissions"):
-                    return DUMMY_PERMISSIONS;
-                case("blocks"):
-                    return LuaValue.ZERO;
-                case("blksize"):
-                    return LuaValue.ZERO;
-                default:
-                    throw new LuaError("invalid attribute name '" + str +"'");
-            }
+            return statField(attributeIndex(arg2), stat);
         }
 
         if (!arg2.istable()) {
             arg2 = new LuaTable();
         }
 
-        arg2.set(DEV, LuaValue.ZERO);
-        arg2.set(INO, LuaValue.ZERO);
-        arg2.set(MODE, mapStatMode(stat));
-        arg2.set(NLINK, LuaValue.ZERO);
-        arg2.set(UID, LuaValue.ZERO);
-        arg2.set(GID, LuaValue.ZERO);
-        arg2.set(RDEV, LuaValue.ZERO);
-        arg2.set(ACCESS, LuaValue.valueOf(stat.lastAccessTime().to(TimeUnit.SECONDS)));
-        arg2.set(MODIFICATION, LuaValue.valueOf(stat.lastModifiedTime().to(TimeUnit.SECONDS)));
-        arg2.set(PERMISSIONS, DUMMY_PERMISSIONS);
-        arg2.set(CHANGE, LuaValue.valueOf(stat.lastModifiedTime().to(TimeUnit.SECONDS)));
-        arg2.set(SIZE, LuaValue.valueOf(stat.size()));
-        arg2.set(BLOCKS, LuaValue.ZERO);
-        arg2.set(BLKSIZE, LuaValue.ZERO);
+        for (int i = 0; i < ATTRIBUTE_NAMES.length; i++) {
+            arg2.set(ATTRIBUTE_NAMES[i], statField(i, stat));
+        }
+
         return arg2;
     }
 
+    protected LuaValue statField(int index, BasicFileAttributes stat) {
+        switch (index) {
+            case(ATTR_DEV):
+            case(ATTR_INO):
+            case(ATTR_NLINK):
+            case(ATTR_UID):
+            case(ATTR_GID):
+            case(ATTR_RDEV):
+            case(ATTR_BLOCKS):
+            case(ATTR_BLKSIZE):
+                return LuaValue.ZERO;
+            case(ATTR_MODE):
+                return mapStatMode(stat);
+            case(ATTR_ACCESS):
+                return time(stat.lastAccessTime());
+            case(ATTR_MODIFICATION):
+            case(ATTR_CHANGE):
+                return time(stat.lastModifiedTime());
+            case(ATTR_PERMISSIONS):
+                return DUMMY_PERMISSIONS;
+            case(ATTR_SIZE):
+                return LuaValue.valueOf(stat.size());
+            default:
+                //extended attribute that was not read
+                return LuaValue.NIL;
+        }
+    }
+
+    /**
+     * Seconds of time or nil if the time is not known.
+     */
+    protected static LuaValue time(FileTime time) {
+        return time == null ? LuaValue.NIL : LuaValue.valueOf(time.to(TimeUnit.SECONDS));
+    }
+
+    /**
+     * Returns the index of the attribute name in {@link #ATTRIBUTE_NAMES}.
+     * The lookup uses the LuaString itself so the hot path does not convert the name to a java String.
+     */
+    protected static int attributeIndex(LuaValue name) {
+        Integer index = ATTRIBUTE_INDEX.get(name.checkstring());
+        if (index == null) {
+            throw new LuaError("invalid attribute name '" + name.tojstring() +"'");
+        }
+
+        return index;
+    }
+
+    protected static LuaValue attributeName(int index) {
+        return index < ATTR_ACCESS_NSEC ? ATTRIBUTE_NAMES[index] : EXTENDED_ATTRIBUTE_NAMES[index - ATTR_ACCESS_NSEC];
+    }
+
+    /**
+     * lfs.fields(names) or lfs.fields(name, ...)
+     * Compiles attribute names to a field list that lfs.attributes, lfs.symlinkattributes and lfs.attributes_many
+     * accept instead of the table to fill. They then return a new table with only those attributes.
+     * A plain table is always the table to fill so the names are only looked up once here.
+     */
+    protected Varargs fields(Varargs args) {
+        LuaValue arg1 = args.arg1();
+        long mask = 0;
+        if (arg1.istable()) {
+            int len = arg1.length();
+            for (int i = 1; i <= len; i++) {
+                mask |= 1L << attributeIndex(arg1.get(i));
+            }
+        } else {
+            for (int i = 1; i <= args.narg(); i++) {
+                mask |= 1L << attributeIndex(args.arg(i));
+            }
+        }
+
+        return new field_list_userdata(mask);
+    }
+
+    /**
+     * Bitmask of ATTR_* indices.
+     */
+    protected static class field_list_userdata extends LuaUserdata {
+        protected final long mask;
 
+        public field_list_userdata(long mask) {
+            super(mask);
+            this.mask = mask;
+        }
+    }
 
 }
@@ -38,9 +38,7 @@ import java.nio.channels.OverlappingFileLockException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
-import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
@@ -120,40 +118,16 @@ public class LuajLFSJSE extends LuajLFSCommon {
 
     @Override
     protected Varargs attributes(Varargs args) {
-        BasicFileAttributes bfa = null;
-
-        try {
-            bfa = resolve(args.checkjstring(1)).attributes();
-        } catch (NoSuchFileException e) {
-            return ERR_NO_SUCH_FILE_OR_DIR;
-        } catch (IOException e) {
-            return ioErr(e);
-        }
-
-        return mapStatResult(args.arg(2), bfa);
+        Varargs fields = args.subargs(2);
+        return mapStat(fields, statArg(args.arg1(), true, isExtended(fields)));
     }
 
     @Override
     protected Varargs symlinkattributes(Varargs args) {
-        BasicFileAttributes bfa = null;
-
-        try {
-            bfa = resolve(args.checkjstring(1)).linkAttributes();
-        } catch (NoSuchFileException e) {
-            return ERR_NO_SUCH_FILE_OR_DIR;
-        } catch (IOException e) {
-            return ioErr(e);
-        }
-
-        return mapStatResult(args.arg(2), bfa);
+        Varargs fields = args.subargs(2);
+        return mapStat(fields, stat(resolve(args.checkstring(1)), false, isExtended(fields)));
     }
 
-
-
-
-
-
-
     @Override
     protected Varargs link(Varargs args) {
 
@@ -32,6 +32,7 @@ import org.luaj.vm2.lib.VarArgFunction;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * TwoArgFunction Lib loader for LuajLFS.
@@ -43,6 +44,10 @@ public class LuajLFSLib extends TwoArgFunction {
 
     private LuaFileSystemHandler handler;
 
+    private ForkJoinPool workerPool;
+
+    private MetadataCache metadataCache;
+
     @Override
     public synchronized LuaValue call(LuaValue arg1, LuaValue env) {
         if (lib != null) {
@@ -63,6 +68,9 @@ public class LuajLFSLib extends TwoArgFunction {
             lib = loadOther(handler, globals, lfsTable);
         }
 
+        lib.workerPool = workerPool;
+        lib.metadataCache = metadataCache;
+
 
         globals.package_.setIsLoaded("lfs", lfsTable);
         return lfsTable;
@@ -76,6 +84,32 @@ public class LuajLFSLib extends TwoArgFunction {
         return handler;
     }
 
+    /**
+     * Set the pool used for parallel operations (for example lfs.walk with parallel = true).
+     * If no pool is set a pool shared by all instances is used.
+     */
+    public synchronized void setWorkerPool(ForkJoinPool workerPool) {
+        this.workerPool = workerPool;
+        if (lib != null) {
+            lib.workerPool = workerPool;
+        }
+    }
+
+    /**
+     * Set the cache used for lfs.attributes, lfs.symlinkattributes and lfs.attributes_many.
+     * The same cache may be set on any number of instances. null (the default) disables caching.
+     */
+    public synchronized void setMetadataCache(MetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+        if (lib != null) {
+            lib.metadataCache = metadataCache;
+        }
+    }
+
+    public synchronized MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
     /**
      * Get the current work directory
      * @deprecated use getFileSystemHandler
@@ -37,13 +37,14 @@ import org.luaj.vm2.Varargs;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.lang.reflect.Field;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemLoopException;
 import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.ReadOnlyFileSystemException;
-import java.nio.file.attribute.BasicFileAttributes;
 
 public class LuajLFSLinux extends LuajLFSCommon {
 
@@ -56,6 +57,8 @@ public class LuajLFSLinux extends LuajLFSCommon {
             throw new LuaError("OS is not Linux or cpu architecture is not supported");
         }
         util = NativeUtils.getLinuxUtil();
+        //The error mapping of the JVM matches errno on Linux.
+        optimistic = true;
         load(dirHandler, globals, table);
     }
 
@@ -101,65 +104,81 @@ public class LuajLFSLinux extends LuajLFSCommon {
 
     @Override
     protected Varargs attributes(Varargs args) {
-        LuaPath path = resolve(args.checkjstring(1));
-        Path systemPath = path.toSystemPath();
-        LuaValue arg2 = args.arg(2);
-
-        if (systemPath == null) {
-            BasicFileAttributes baf;
+        Varargs fields = args.subargs(2);
+        return mapStat(fields, statArg(args.arg1(), true, isExtended(fields)));
+    }
 
-            try {
-                baf = path.attributes();
-            } catch (IOException e) {
-                return ERR_IO;
-            }
+    @Override
+    protected Varargs symlinkattributes(Varargs args) {
+        Varargs fields = args.subargs(2);
+        return mapStat(fields, stat(resolve(args.checkstring(1)), false, isExtended(fields)));
+    }
 
-            return mapStatResult(arg2, baf);
+    /**
+     * Errors are mapped the same way as in {@link #link(Varargs)}.
+     */
+    @Override
+    protected void hardLink(Path existing, Path link) throws IOException {
+        try {
+            util.link(existing.toString(), link.toString());
+        } catch (QuotaExceededException e) {
+            throw new ErrnoException(ERR_QUOTA);
+        } catch (ReadOnlyFileSystemException e) {
+            throw new ErrnoException(ERR_READ_ONLY_FS);
+        } catch (InvalidPathException e) {
+            throw new ErrnoException(ERR_FILE_NAME_TOO_LONG);
+        } catch (IllegalArgumentException e) {
+            throw new ErrnoException(ERR_ILLEGAL_ARGUMENTS);
+        } catch (UnknownNativeErrorException e) {
+            throw new ErrnoException(err(util.strerror_r((int) e.getCode()), e.getCode()));
         }
+    }
 
-        Stat stat;
-
+    /**
+     * There is no fstat in the native library, stat on /proc/self/fd/N resolves to the inode of the open file instead
+     * which gives the same result even if the file was renamed or deleted in the meantime.
+     */
+    @Override
+    protected Object statFile(LuaRandomAccessFile file) {
         try {
-            stat = util.stat(systemPath.toString());
-        } catch (FileNotFoundException e) {
-            return ERR_NO_SUCH_FILE_OR_DIR;
-        } catch (InvalidPathException e) {
-            return ERR_FILE_NAME_TOO_LONG;
-        } catch (FileSystemLoopException e) {
-            return ERR_TOO_MANY_LINKS;
-        } catch (AccessDeniedException e)  {
-            return ERR_PERMISSION_DENIED;
+            FileDescriptor fd = file.getFileDescriptor();
+            if (fd == null) {
+                return super.statFile(file);
+            }
+
+            int nfd = util.getFD(fd);
+            if (nfd < 0) {
+                return ERR_BAD_FD;
+            }
+
+            return util.stat("/proc/self/fd/" + nfd);
+        } catch (InvalidFileDescriptorException | FileNotFoundException e) {
+            return ERR_BAD_FD;
         } catch (UnknownNativeErrorException e) {
             return err(util.strerror_r((int) e.getCode()), e.getCode());
         } catch (IOException e) {
-            return ERR_IO;
+            return ioErr(e);
         }
-
-        return mapStatResult(arg2, stat);
     }
 
     @Override
-    protected Varargs symlinkattributes(Varargs args) {
-        LuaPath path = resolve(args.checkjstring(1));
+    protected Object statPath(LuaPath path, boolean follow) {
         Path systemPath = path.toSystemPath();
-        LuaValue arg2 = args.arg(2);
 
         if (systemPath == null) {
-            BasicFileAttributes baf;
-
             try {
-                baf = path.linkAttributes();
+                return follow ? path.attributes() : path.linkAttributes();
             } catch (IOException e) {
                 return ERR_IO;
             }
-
-            return mapStatResult(arg2, baf);
         }
 
-        Stat stat;
+        return nativeStat(systemPath.toString(), follow);
+    }
 
+    protected Object nativeStat(String path, boolean follow) {
         try {
-            stat = util.lstat(systemPath.toString());
+            return follow ? util.stat(path) : util.lstat(path);
         } catch (FileNotFoundException e) {
             return ERR_NO_SUCH_FILE_OR_DIR;
         } catch (InvalidPathException e) {
@@ -173,8 +192,119 @@ public class LuajLFSLinux extends LuajLFSCommon {
         } catch (IOException e) {
             return ERR_IO;
         }
+    }
+
+    /**
+     * The directory fd of sun.nio.fs.UnixSecureDirectoryStream or null if not available.
+     */
+    protected static final Field SECURE_STREAM_DFD = findSecureStreamDfd();
 
-        return mapStatResult(arg2, stat);
+    private static Field findSecureStreamDfd() {
+        try {
+            Field field = Class.forName("sun.nio.fs.UnixSecureDirectoryStream").getDeclaredField("dfd");
+            return field.getType() == int.class ? field : null;
+        } catch (Exception | LinkageError exc) {
+            return null;
+        }
+    }
+
+    /**
+     * Makes all path based operations of the handle relative to its directory fd by using /proc/self/fd/N as base.
+     */
+    @Override
+    protected void configureDirHandle(DirectoryHandle handle) {
+        Object stream = handle.getSecureStream();
+        if (SECURE_STREAM_DFD == null || stream == null || stream.getClass() != SECURE_STREAM_DFD.getDeclaringClass()) {
+            return;
+        }
+
+        try {
+            int dfd = (Integer) getField(SECURE_STREAM_DFD, stream);
+            handle.setFdPath(handle.getPath().getFileSystem().getPath("/proc/self/fd/" + dfd));
+        } catch (RuntimeException exc) {
+            //Reflection not possible, path based it is.
+        }
+    }
+
+    @Override
+    protected Object statAt(DirectoryHandle handle, Path name, boolean follow) {
+        if (handle.getFdPath() == null) {
+            return super.statAt(handle, name, follow);
+        }
+
+        return nativeStat(handle.at(name).toString(), follow);
+    }
+
+    @Override
+    protected Varargs direntType(Path path) {
+        Stat stat;
+        try {
+            stat = util.lstat(path.toString());
+        } catch (IOException | UnknownNativeErrorException | InvalidPathException e) {
+            return LuaValue.NIL;
+        }
+
+        return mapDirentType(stat);
+    }
+
+    @Override
+    protected ParallelTreeWalker.MetadataReader metadataReader() {
+        return new ParallelTreeWalker.MetadataReader() {
+            @Override
+            public void read(Path path, boolean follow, ParallelTreeWalker.Entry entry) throws IOException {
+                Stat stat;
+                try {
+                    stat = follow ? util.stat(path.toString()) : util.lstat(path.toString());
+                } catch (FileNotFoundException e) {
+                    //Callers expect the nio exception for ENOENT
+                    throw new NoSuchFileException(path.toString());
+                } catch (UnknownNativeErrorException e) {
+                    throw new IOException(util.strerror_r((int) e.getCode()));
+                } catch (InvalidPathException e) {
+                    throw new IOException(e.getMessage());
+                }
+
+                entry.mode = mapStatMode(stat);
+                entry.directory = stat.isDir();
+                entry.dev = stat.getDev();
+                entry.ino = stat.getIno();
+                entry.nlink = stat.getNlink();
+                entry.size = stat.getSize();
+                entry.blocks = stat.getBlocks();
+                entry.mtime = stat.getMtime();
+                entry.ctime = stat.getCtime();
+                entry.fileKey = new FileKey(entry.dev, entry.ino);
+            }
+        };
+    }
+
+    @Override
+    protected LuaValue entryMode(LuaPath path, boolean follow) {
+        Path systemPath = path.toSystemPath();
+        if (systemPath == null) {
+            return super.entryMode(path, follow);
+        }
+
+        try {
+            return mapStatMode(follow ? util.stat(systemPath.toString()) : util.lstat(systemPath.toString()));
+        } catch (IOException | UnknownNativeErrorException | InvalidPathException e) {
+            return LuaValue.NIL;
+        }
+    }
+
+    @Override
+    protected Object fileKey(LuaPath path) {
+        Path systemPath = path.toSystemPath();
+        if (systemPath == null) {
+            return super.fileKey(path);
+        }
+
+        try {
+            Stat stat = util.stat(systemPath.toString());
+            return new FileKey(stat.getDev(), stat.getIno());
+        } catch (IOException | UnknownNativeErrorException | InvalidPathException e) {
+            return null;
+        }
     }
 
     @Override
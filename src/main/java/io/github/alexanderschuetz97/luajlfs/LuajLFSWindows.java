@@ -173,6 +173,11 @@ public class LuajLFSWindows extends LuajLFSCommon {
         }
     }
 
+    @Override
+    protected boolean globCaseInsensitive() {
+        return true;
+    }
+
     @Override
     public boolean isAbsolute(String path) {
         if (path.length() <= 1) {
@@ -204,25 +209,24 @@ public class LuajLFSWindows extends LuajLFSCommon {
 
     @Override
     protected Varargs attributes(Varargs args) {
-        LuaPath path = resolve(args.checkjstring(1));
-        Path systemPath = path.toSystemPath();
-        LuaValue arg2 = args.arg(2);
+        Varargs fields = args.subargs(2);
+        return mapStat(fields, statArg(args.arg1(), true, isExtended(fields)));
+    }
 
-        if (systemPath == null) {
-            BasicFileAttributes baf;
+    @Override
+    protected Object statPath(LuaPath path, boolean follow) {
+        Path systemPath = path.toSystemPath();
 
+        if (systemPath == null || !follow) {
             try {
-                baf = path.attributes();
+                return follow ? path.attributes() : path.linkAttributes();
             } catch (IOException e) {
                 return ERR_IO;
             }
-
-            return mapStatResult(arg2, baf);
         }
 
-        Stat stat;
         try {
-            stat = util._stat64(systemPath.toString());
+            return util._stat64(systemPath.toString());
         } catch (IllegalArgumentException e) {
             return ERR_ILLEGAL_ARGUMENTS;
         } catch (FileNotFoundException e) {
@@ -230,8 +234,6 @@ public class LuajLFSWindows extends LuajLFSCommon {
         } catch (UnknownNativeErrorException e) {
             return err(util.strerror_s((int) e.getCode()), (int) e.getCode());
         }
-
-        return mapStatResult(arg2, stat);
     }
 
     protected long convTime(long high, long low) {
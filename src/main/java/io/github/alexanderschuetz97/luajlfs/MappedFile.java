@@ -0,0 +1,198 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read only memory mapping of a file region of any size.
+ * A single {@link MappedByteBuffer} is limited to 2GB so the region is split into segments of {@link #SEGMENT_SIZE} bytes.
+ * {@link #close()} unmaps the segments right away instead of waiting for the gc to collect them.
+ * Must not be accessed by other threads while or after it is closed.
+ */
+public class MappedFile {
+
+    protected static final int SEGMENT_SHIFT = 30;
+
+    protected static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+
+    protected static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final long length;
+    private MappedByteBuffer[] segments;
+
+    protected MappedFile(MappedByteBuffer[] segments, long length) {
+        this.segments = segments;
+        this.length = length;
+    }
+
+    /**
+     * Maps length bytes starting at offset. A negative length or one that reaches past the end of the file maps everything up to the end.
+     */
+    public static MappedFile map(Path path, long offset, long length) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("negative offset");
+        }
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long available = Math.max(0, size - offset);
+            if (length < 0 || length > available) {
+                length = available;
+            }
+
+            MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT)];
+            try {
+                for (int i = 0; i < segments.length; i++) {
+                    long start = (long) i << SEGMENT_SHIFT;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + start, Math.min(SEGMENT_SIZE, length - start));
+                }
+            } catch (IOException | RuntimeException e) {
+                for (MappedByteBuffer segment : segments) {
+                    unmap(segment);
+                }
+                throw e;
+            }
+
+            //The mapping stays valid after the channel is closed.
+            return new MappedFile(segments, length);
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public boolean isClosed() {
+        return segments == null;
+    }
+
+    public byte get(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+    }
+
+    /**
+     * Copies len bytes starting at index into dst.
+     */
+    public void get(long index, byte[] dst, int off, int len) {
+        while (len > 0) {
+            ByteBuffer segment = segments[(int) (index >>> SEGMENT_SHIFT)].duplicate();
+            int position = (int) (index & SEGMENT_MASK);
+            int count = Math.min(len, segment.limit() - position);
+            segment.position(position);
+            segment.get(dst, off, count);
+            index += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Returns the index of the first occurrence of pattern at or after from or -1.
+     */
+    public long indexOf(byte[] pattern, long from) {
+        if (from < 0) {
+            from = 0;
+        }
+
+        if (pattern.length == 0) {
+            return from <= length ? from : -1;
+        }
+
+        long last = length - pattern.length;
+        byte first = pattern[0];
+        for (long i = from; i <= last; i++) {
+            if (get(i) != first) {
+                continue;
+            }
+
+            int j = 1;
+            while (j < pattern.length && get(i + j) == pattern[j]) {
+                j++;
+            }
+
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Unmaps the file, it must not be accessed afterwards.
+     */
+    public void close() {
+        MappedByteBuffer[] segments = this.segments;
+        if (segments == null) {
+            return;
+        }
+
+        this.segments = null;
+        for (MappedByteBuffer segment : segments) {
+            unmap(segment);
+        }
+    }
+
+    private static volatile Object unsafe;
+    private static volatile Method invokeCleaner;
+
+    /**
+     * Releases the mapping of the buffer without waiting for the gc.
+     * Uses Unsafe.invokeCleaner on java 9+ and DirectBuffer.cleaner() before that, if neither is accessible the gc has to do it.
+     */
+    protected static void unmap(MappedByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        try {
+            if (invokeCleaner == null) {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            }
+
+            invokeCleaner.invoke(unsafe, buffer);
+            return;
+        } catch (Exception e) {
+            //Java 8
+        }
+
+        try {
+            Method cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+            Object instance = cleaner.invoke(buffer);
+            if (instance != null) {
+                instance.getClass().getMethod("clean").invoke(instance);
+            }
+        } catch (Exception e) {
+            //DC
+        }
+    }
+}
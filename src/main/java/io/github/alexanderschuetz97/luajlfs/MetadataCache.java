@@ -0,0 +1,231 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache for the results of stat/lstat keyed by the system path.
+ * The cache is split into stripes that are locked independently, each stripe evicts its least recently used entry
+ * once it is full. Entries expire after the ttl has elapsed.
+ * Only successful results are cached.
+ *
+ * One instance can be shared by any number of {@link LuajLFSLib} instances (see {@link LuajLFSLib#setMetadataCache(MetadataCache)}).
+ * Changes made by LuajLFS itself invalidate the affected entries, changes made by anything else
+ * (other processes, java code, io library) are only visible once the entry expired or {@link #invalidate(String)} was called.
+ */
+public class MetadataCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 16384;
+
+    public static final long DEFAULT_TTL_MILLIS = 1000;
+
+    public static final int DEFAULT_STRIPES = 16;
+
+    private final Stripe[] stripes;
+
+    private final long ttlNanos;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public MetadataCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS, DEFAULT_STRIPES);
+    }
+
+    public MetadataCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, DEFAULT_STRIPES);
+    }
+
+    public MetadataCache(int maxEntries, long ttlMillis, int stripeCount) {
+        if (maxEntries < 1 || ttlMillis < 0 || stripeCount < 1) {
+            throw new IllegalArgumentException();
+        }
+
+        int perStripe = Math.max(1, maxEntries / stripeCount);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Returns the cached result or null if there is no valid entry.
+     */
+    public Object get(String path, boolean follow) {
+        Key key = new Key(path, follow);
+        Stripe stripe = stripe(path);
+        long now = System.nanoTime();
+        synchronized (stripe) {
+            Value value = stripe.get(key);
+            if (value != null) {
+                if (now - value.created < ttlNanos) {
+                    hits.incrementAndGet();
+                    return value.result;
+                }
+                stripe.remove(key);
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String path, boolean follow, Object result) {
+        Value value = new Value(result, System.nanoTime());
+        Stripe stripe = stripe(path);
+        synchronized (stripe) {
+            stripe.put(new Key(path, follow), value);
+        }
+    }
+
+    /**
+     * Removes the stat and lstat result of the path.
+     */
+    public void invalidate(String path) {
+        Stripe stripe = stripe(path);
+        synchronized (stripe) {
+            stripe.remove(new Key(path, true));
+            stripe.remove(new Key(path, false));
+        }
+    }
+
+    /**
+     * Removes the path and every path below it.
+     */
+    public void invalidateTree(String path) {
+        invalidate(path);
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Iterator<Key> iter = stripe.keySet().iterator();
+                while (iter.hasNext()) {
+                    if (iter.next().path.startsWith(prefix)) {
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                size += stripe.size();
+            }
+        }
+
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private Stripe stripe(String path) {
+        int h = path.hashCode();
+        h ^= (h >>> 16);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    private class Stripe extends LinkedHashMap<Key, Value> {
+
+        private final int maxEntries;
+
+        private Stripe(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    private static class Key {
+        private final String path;
+        private final boolean follow;
+
+        private Key(String path, boolean follow) {
+            this.path = path;
+            this.follow = follow;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+            return follow == key.follow && path.equals(key.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * path.hashCode() + (follow ? 1 : 0);
+        }
+    }
+
+    private static class Value {
+        private final Object result;
+        private final long created;
+
+        private Value(Object result, long created) {
+            this.result = result;
+            this.created = created;
+        }
+    }
+}
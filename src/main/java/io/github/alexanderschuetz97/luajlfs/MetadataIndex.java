@@ -0,0 +1,315 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * {@link Snapshot} of a directory tree that is persisted in a file and updated incrementally.
+ * On rescan only directories whose modification or change time differs from the stored one are listed again,
+ * the entries of unchanged directories are taken from the stored snapshot without reading their metadata,
+ * only their subdirectories are checked. Changes to the content of files in unchanged directories are therefore only found by a full scan.
+ * Directories modified in the same second as the previous scan are always listed again since their change could be missing from the snapshot.
+ */
+public abstract class MetadataIndex {
+
+    protected static final int MAGIC = 0x4C465349;
+    protected static final int VERSION = 1;
+
+    protected final Path root;
+    protected final Path file;
+    protected final ParallelTreeWalker.MetadataReader reader;
+
+    protected Snapshot snapshot;
+    protected Snapshot previous;
+    protected long rootMtime = -1;
+    protected long rootCtime = -1;
+    protected long scanTime = -1;
+    protected int errors;
+
+    public MetadataIndex(Path root, Path file, ParallelTreeWalker.MetadataReader reader) {
+        this.root = root;
+        this.file = file;
+        this.reader = reader;
+        this.snapshot = new Snapshot.Builder().build();
+    }
+
+    /**
+     * Mode to store for the entry, directories must be {@link Snapshot#MODE_DIRECTORY}.
+     */
+    protected abstract byte mode(ParallelTreeWalker.Entry entry);
+
+    /**
+     * Snapshot of the last scan.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Snapshot before the last scan, empty if there was no stored index.
+     */
+    public Snapshot getPrevious() {
+        return previous;
+    }
+
+    /**
+     * Number of entries that could not be read during the last scan.
+     */
+    public int getErrors() {
+        return errors;
+    }
+
+    /**
+     * Reads the stored index, returns false if there is none or it belongs to another root or version.
+     */
+    public boolean load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !root.toString().equals(in.readUTF())) {
+                return false;
+            }
+
+            long time = in.readLong();
+            long mtime = in.readLong();
+            long ctime = in.readLong();
+            int count = in.readInt();
+            int namesLength = in.readInt();
+            if (count < 0 || namesLength < 0) {
+                return false;
+            }
+
+            byte[] names = new byte[namesLength];
+            in.readFully(names);
+            Snapshot.Builder builder = new Snapshot.Builder(count, 1);
+            int offset = 0;
+            for (int i = 0; i < count; i++) {
+                int length = (int) readVarLong(in);
+                if (length < 0 || offset + length > namesLength) {
+                    return false;
+                }
+                builder.add(names, offset, length, in.readByte(), readVarLong(in), readVarLong(in), readVarLong(in), readVarLong(in));
+                offset += length;
+            }
+
+            snapshot = builder.build();
+            scanTime = time;
+            rootMtime = mtime;
+            rootCtime = ctime;
+            return true;
+        } catch (NoSuchFileException e) {
+            return false;
+        } catch (EOFException | StreamCorruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file that then replaces the stored index.
+     */
+    public void save() throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(root.toString());
+            out.writeLong(scanTime);
+            out.writeLong(rootMtime);
+            out.writeLong(rootCtime);
+            int count = snapshot.size();
+            out.writeInt(count);
+            int namesLength = count == 0 ? 0 : snapshot.pathOffset(count - 1) + snapshot.pathLength(count - 1) - snapshot.pathOffset(0);
+            out.writeInt(namesLength);
+            if (count > 0) {
+                out.write(snapshot.pathBytes(), snapshot.pathOffset(0), namesLength);
+            }
+
+            for (int i = 0; i < count; i++) {
+                writeVarLong(out, snapshot.pathLength(i));
+                out.writeByte(snapshot.mode(i));
+                writeVarLong(out, snapshot.size(i));
+                writeVarLong(out, snapshot.mtime(i));
+                writeVarLong(out, snapshot.ctime(i));
+                writeVarLong(out, snapshot.ino(i));
+            }
+        }
+
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Scans the tree, the current snapshot becomes the previous one.
+     * If full is true every directory is listed again.
+     */
+    public void scan(boolean full) throws IOException {
+        long start = System.currentTimeMillis() / 1000;
+        ParallelTreeWalker.Entry rootEntry = new ParallelTreeWalker.Entry();
+        reader.read(root, false, rootEntry);
+        if (!rootEntry.directory) {
+            throw new NotDirectoryException(root.toString());
+        }
+
+        Snapshot old = snapshot;
+        boolean unchanged = !full && rootMtime == rootEntry.mtime && rootCtime == rootEntry.ctime && rootMtime < scanTime;
+        Scan scan = new Scan(old, full, Math.max(16, old.size()));
+        if (unchanged) {
+            scan.reuse(root, "", 0, old.size());
+        } else {
+            scan.list(root, "");
+        }
+
+        previous = old;
+        snapshot = scan.builder.build();
+        errors = scan.errors;
+        rootMtime = rootEntry.mtime;
+        rootCtime = rootEntry.ctime;
+        scanTime = start;
+    }
+
+    protected class Scan {
+        protected final Snapshot old;
+        protected final boolean full;
+        protected final Snapshot.Builder builder;
+        protected int errors;
+
+        protected Scan(Snapshot old, boolean full, int capacity) {
+            this.old = old;
+            this.full = full;
+            this.builder = new Snapshot.Builder(capacity, capacity * 16);
+        }
+
+        protected String child(String parent, String name) {
+            return parent.isEmpty() ? name : parent + File.separator + name;
+        }
+
+        /**
+         * Directory did not change, its direct children are the entries from to end that are not below another child.
+         */
+        protected void reuse(Path dir, String path, int from, int end) {
+            int index = from;
+            while (index < end) {
+                if (old.mode(index) != Snapshot.MODE_DIRECTORY) {
+                    builder.add(old, index);
+                    index++;
+                    continue;
+                }
+
+                int next = old.subtreeEnd(index);
+                String name = old.path(index).substring(path.isEmpty() ? 0 : path.length() + 1);
+                visit(dir.resolve(name), child(path, name), index, next);
+                index = next;
+            }
+        }
+
+        /**
+         * Directory changed or is new, every entry is read.
+         */
+        protected void list(Path dir, String path) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    String name = child.getFileName().toString();
+                    String childPath = child(path, name);
+                    int index = old.indexOf(childPath);
+                    visit(child, childPath, index, -1);
+                }
+            } catch (IOException e) {
+                errors++;
+            } catch (DirectoryIteratorException e) {
+                errors++;
+            }
+        }
+
+        /**
+         * Reads the metadata of the entry and descends if it is a directory.
+         * oldIndex is the index in the old snapshot or -1, oldEnd the end of its subtree or -1 if not known yet.
+         */
+        protected void visit(Path file, String path, int oldIndex, int oldEnd) {
+            ParallelTreeWalker.Entry entry = new ParallelTreeWalker.Entry();
+            try {
+                reader.read(file, false, entry);
+            } catch (NoSuchFileException e) {
+                return;
+            } catch (IOException e) {
+                errors++;
+                return;
+            }
+
+            builder.add(path, mode(entry), entry.size, entry.mtime, entry.ctime, entry.ino);
+            if (!entry.directory) {
+                return;
+            }
+
+            if (!full && oldIndex >= 0 && old.mode(oldIndex) == Snapshot.MODE_DIRECTORY && old.mtime(oldIndex) == entry.mtime
+                    && old.ctime(oldIndex) == entry.ctime && entry.mtime < scanTime) {
+                reuse(file, path, oldIndex + 1, oldEnd < 0 ? old.subtreeEnd(oldIndex) : oldEnd);
+                return;
+            }
+
+            list(file, path);
+        }
+    }
+
+    protected static void writeVarLong(OutputStream out, long value) throws IOException {
+        //zigzag so small negative values stay small
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.write((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    protected static long readVarLong(InputStream in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+
+        throw new StreamCorruptedException("malformed index");
+    }
+}
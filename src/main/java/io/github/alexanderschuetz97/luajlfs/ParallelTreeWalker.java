@@ -0,0 +1,508 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import org.luaj.vm2.LuaValue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Traverses a directory tree using a {@link ForkJoinPool}.
+ * Every directory is listed by its own task so that readdir and stat calls of independent subtrees run concurrently.
+ * The entries are handed to a single consumer (usually the lua thread) either in a deterministic order
+ * (pre order, siblings sorted by name) or in the order they are discovered.
+ *
+ * The ordered mode has to buffer every directory that was already listed but not consumed yet,
+ * the unordered mode only buffers a bounded amount of entries.
+ */
+public class ParallelTreeWalker {
+
+    protected static final int QUEUE_CAPACITY = 4096;
+
+    protected static final Entry END = new Entry();
+
+    private static volatile ForkJoinPool defaultPool;
+
+    /**
+     * Reads the metadata of a single path. Must be thread safe.
+     */
+    public interface MetadataReader {
+        void read(Path path, boolean follow, Entry entry) throws IOException;
+    }
+
+    /**
+     * Receives the entries of {@link #walkSequential(Path, Visitor)}.
+     */
+    public interface Visitor {
+        void visit(Entry entry);
+    }
+
+    /**
+     * A single visited file. The metadata fields are filled by the {@link MetadataReader}.
+     */
+    public static class Entry {
+        /**
+         * path relative to the root, empty string for the root itself
+         */
+        public String path;
+        public String name;
+        public int depth;
+        public LuaValue mode;
+        public boolean directory;
+        public long dev;
+        public long ino;
+        /**
+         * number of hard links or 0 if unknown
+         */
+        public long nlink;
+        public long size;
+        /**
+         * number of 512 byte blocks or -1 if unknown
+         */
+        public long blocks;
+        public long mtime;
+        public long ctime;
+        /**
+         * object that uniquely identifies the file or null if this is not possible.
+         */
+        public Object fileKey;
+        public IOException error;
+        public Path systemPath;
+        protected ForkJoinTask<List<Entry>> children;
+        /**
+         * the directory the entry was found in, null for the root
+         */
+        protected Entry parent;
+        /**
+         * set by {@link Result#skip()}, nothing below this entry is read or returned anymore
+         */
+        protected volatile boolean skipped;
+
+        /**
+         * true if this entry or one of its parents was skipped
+         */
+        protected boolean isSkipped() {
+            for (Entry entry = this; entry != null; entry = entry.parent) {
+                if (entry.skipped) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    public abstract static class Result {
+        protected volatile boolean cancelled;
+        protected final Queue<Entry> errors = new ConcurrentLinkedQueue<>();
+        protected final Set<Object> visited = Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+        protected Entry root;
+        protected Entry last;
+
+        /**
+         * Returns the next entry or null if the traversal is done.
+         */
+        public abstract Entry next() throws InterruptedException;
+
+        /**
+         * Nothing below the entry last returned by {@link #next()} is returned anymore.
+         * Directories below it that were not listed yet are not listed at all.
+         */
+        public void skip() {
+            if (last != null) {
+                last.skipped = true;
+            }
+        }
+
+        /**
+         * Stops the traversal, no further entries are read.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Entries whose metadata could not be read and directories that could not be listed.
+         */
+        public Queue<Entry> getErrors() {
+            return errors;
+        }
+    }
+
+    public static ForkJoinPool getDefaultPool() {
+        ForkJoinPool pool = defaultPool;
+        if (pool != null) {
+            return pool;
+        }
+
+        synchronized (ParallelTreeWalker.class) {
+            if (defaultPool == null) {
+                //Mostly waiting for metadata I/O so more threads than cpus make sense.
+                defaultPool = new ForkJoinPool(Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+            }
+
+            return defaultPool;
+        }
+    }
+
+    protected final ForkJoinPool pool;
+    protected final MetadataReader reader;
+    protected int maxDepth = Integer.MAX_VALUE;
+    protected boolean follow;
+    protected boolean xdev;
+    protected boolean ordered;
+
+    public ParallelTreeWalker(ForkJoinPool pool, MetadataReader reader) {
+        this.pool = pool == null ? getDefaultPool() : pool;
+        this.reader = reader;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void setFollow(boolean follow) {
+        this.follow = follow;
+    }
+
+    /**
+     * Only descend into directories on the same device as the root.
+     */
+    public void setXdev(boolean xdev) {
+        this.xdev = xdev;
+    }
+
+    /**
+     * Produce the entries in pre order with siblings sorted by name.
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    /**
+     * Starts the traversal. The first entry returned by the result is the root.
+     */
+    public Result walk(Path root) throws IOException {
+        Entry entry = new Entry();
+        entry.path = "";
+        entry.name = root.getFileName() == null ? root.toString() : root.getFileName().toString();
+        entry.depth = 0;
+        entry.systemPath = root;
+        reader.read(root, follow, entry);
+
+        if (ordered) {
+            OrderedResult result = new OrderedResult(entry);
+            if (descend(result, entry)) {
+                OrderedTask task = new OrderedTask(result, entry);
+                entry.children = task;
+                pool.execute(task);
+            }
+            return result;
+        }
+
+        UnorderedResult result = new UnorderedResult(entry);
+        if (descend(result, entry)) {
+            result.pending.incrementAndGet();
+            pool.execute(new UnorderedTask(result, entry));
+        }
+
+        result.finish();
+        return result;
+    }
+
+    /**
+     * Same traversal as {@link #walk(Path)} but everything is done in the calling thread without the pool.
+     * Entries are visited in pre order, the returned result only contains the errors.
+     */
+    public Result walkSequential(Path root, Visitor visitor) throws IOException {
+        Entry entry = new Entry();
+        entry.path = "";
+        entry.name = root.getFileName() == null ? root.toString() : root.getFileName().toString();
+        entry.depth = 0;
+        entry.systemPath = root;
+        reader.read(root, follow, entry);
+
+        Result result = new Result() {
+            @Override
+            public Entry next() {
+                return null;
+            }
+        };
+        result.root = entry;
+
+        Deque<Entry> stack = new ArrayDeque<>();
+        stack.push(entry);
+        while (!stack.isEmpty() && !result.cancelled) {
+            Entry current = stack.pop();
+            visitor.visit(current);
+            if (descend(result, current)) {
+                for (Entry child : readChildren(result, current)) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    protected boolean descend(Result result, Entry entry) {
+        if (!entry.directory || entry.depth >= maxDepth) {
+            return false;
+        }
+
+        if (xdev && entry.dev != result.root.dev) {
+            return false;
+        }
+
+        if (follow && entry.fileKey != null) {
+            return result.visited.add(entry.fileKey);
+        }
+
+        return true;
+    }
+
+    protected List<Entry> readChildren(Result result, Entry dir) {
+        List<Entry> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir.systemPath)) {
+            for (Path path : stream) {
+                if (result.cancelled) {
+                    break;
+                }
+
+                Entry entry = new Entry();
+                entry.name = path.getFileName().toString();
+                entry.path = dir.path.isEmpty() ? entry.name : dir.path + File.separator + entry.name;
+                entry.depth = dir.depth + 1;
+                entry.systemPath = path;
+                entry.parent = dir;
+                try {
+                    reader.read(path, follow, entry);
+                } catch (IOException e) {
+                    entry.error = e;
+                    result.errors.add(entry);
+                    continue;
+                }
+
+                children.add(entry);
+            }
+        } catch (IOException e) {
+            dir.error = e;
+            result.errors.add(dir);
+        } catch (DirectoryIteratorException e) {
+            dir.error = e.getCause();
+            result.errors.add(dir);
+        }
+
+        return children;
+    }
+
+    protected static final Comparator<Entry> NAME_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            return o1.name.compareTo(o2.name);
+        }
+    };
+
+    protected class OrderedResult extends Result {
+        protected final Deque<Iterator<Entry>> stack = new ArrayDeque<>();
+        /**
+         * the task that lists the children of last, its iterator is the top of the stack
+         */
+        protected ForkJoinTask<List<Entry>> lastChildren;
+
+        protected OrderedResult(Entry root) {
+            this.root = root;
+            stack.push(Collections.singletonList(root).iterator());
+        }
+
+        @Override
+        public Entry next() {
+            while (!stack.isEmpty() && !cancelled) {
+                Iterator<Entry> iterator = stack.peek();
+                if (!iterator.hasNext()) {
+                    stack.pop();
+                    continue;
+                }
+
+                Entry entry = iterator.next();
+                ForkJoinTask<List<Entry>> children = entry.children;
+                lastChildren = children;
+                last = entry;
+                if (children != null) {
+                    entry.children = null;
+                    stack.push(children.join().iterator());
+                }
+
+                return entry;
+            }
+
+            return null;
+        }
+
+        @Override
+        public void skip() {
+            super.skip();
+            if (lastChildren != null) {
+                //The children were already listed, the tasks of their subdirectories stop once they see the flag.
+                stack.pop();
+                lastChildren = null;
+            }
+        }
+    }
+
+    protected class OrderedTask extends RecursiveTask<List<Entry>> {
+        protected final OrderedResult result;
+        protected final Entry dir;
+
+        protected OrderedTask(OrderedResult result, Entry dir) {
+            this.result = result;
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<Entry> compute() {
+            if (result.cancelled || dir.isSkipped()) {
+                return Collections.emptyList();
+            }
+
+            List<Entry> children = readChildren(result, dir);
+            Collections.sort(children, NAME_ORDER);
+            for (Entry child : children) {
+                if (descend(result, child)) {
+                    OrderedTask task = new OrderedTask(result, child);
+                    child.children = task;
+                    task.fork();
+                }
+            }
+
+            return children;
+        }
+    }
+
+    protected class UnorderedResult extends Result {
+        protected final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        protected final AtomicInteger pending = new AtomicInteger(1);
+        protected boolean rootDone;
+        protected boolean done;
+
+        protected UnorderedResult(Entry root) {
+            this.root = root;
+        }
+
+        @Override
+        public Entry next() throws InterruptedException {
+            if (!rootDone) {
+                rootDone = true;
+                last = root;
+                return root;
+            }
+
+            while (!done && !cancelled) {
+                Entry entry = queue.take();
+                if (entry == END) {
+                    done = true;
+                    return null;
+                }
+
+                if (entry.parent.isSkipped()) {
+                    //Listed before the directory was skipped
+                    continue;
+                }
+
+                last = entry;
+                return entry;
+            }
+
+            return null;
+        }
+
+        protected void emit(Entry entry) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(entry, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                cancelled = true;
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void finish() {
+            if (pending.decrementAndGet() == 0) {
+                emit(END);
+            }
+        }
+    }
+
+    protected class UnorderedTask extends RecursiveAction {
+        protected final UnorderedResult result;
+        protected final Entry dir;
+
+        protected UnorderedTask(UnorderedResult result, Entry dir) {
+            this.result = result;
+            this.dir = dir;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                if (result.cancelled || dir.isSkipped()) {
+                    return;
+                }
+
+                for (Entry child : readChildren(result, dir)) {
+                    result.emit(child);
+                    if (descend(result, child)) {
+                        result.pending.incrementAndGet();
+                        new UnorderedTask(result, child).fork();
+                    }
+                }
+            } finally {
+                result.finish();
+            }
+        }
+    }
+}
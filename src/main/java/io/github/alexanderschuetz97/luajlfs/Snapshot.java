@@ -0,0 +1,405 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Immutable metadata of every entry of a directory tree stored in packed arrays instead of one object per entry.
+ * The relative paths are stored as utf-8 in a single byte array. Entries are sorted by path component by component
+ * (the separator sorts before every other byte) which keeps the descendants of a directory directly after it
+ * and allows two snapshots to be compared in linear time.
+ */
+public class Snapshot {
+
+    /*
+     * Stored modes, the meaning of every other value is up to the user of the snapshot.
+     */
+    public static final byte MODE_FILE = 0;
+    public static final byte MODE_DIRECTORY = 1;
+
+    public static final int ADDED = 0;
+    public static final int REMOVED = 1;
+    public static final int MODIFIED = 2;
+
+    protected static final byte SEPARATOR = (byte) File.separatorChar;
+
+    protected final int count;
+    protected final byte[] names;
+    /**
+     * path of entry i is names[offsets[i]] to names[offsets[i+1]]
+     */
+    protected final int[] offsets;
+    protected final byte[] modes;
+    protected final long[] sizes;
+    protected final long[] mtimes;
+    protected final long[] ctimes;
+    protected final long[] inos;
+
+    protected Snapshot(int count, byte[] names, int[] offsets, byte[] modes, long[] sizes, long[] mtimes, long[] ctimes, long[] inos) {
+        this.count = count;
+        this.names = names;
+        this.offsets = offsets;
+        this.modes = modes;
+        this.sizes = sizes;
+        this.mtimes = mtimes;
+        this.ctimes = ctimes;
+        this.inos = inos;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int pathOffset(int index) {
+        return offsets[index];
+    }
+
+    public int pathLength(int index) {
+        return offsets[index+1] - offsets[index];
+    }
+
+    /**
+     * The backing array of all paths, must not be modified.
+     */
+    public byte[] pathBytes() {
+        return names;
+    }
+
+    public String path(int index) {
+        return new String(names, offsets[index], pathLength(index), StandardCharsets.UTF_8);
+    }
+
+    public byte mode(int index) {
+        return modes[index];
+    }
+
+    public long size(int index) {
+        return sizes[index];
+    }
+
+    public long mtime(int index) {
+        return mtimes[index];
+    }
+
+    public long ctime(int index) {
+        return ctimes[index];
+    }
+
+    public long ino(int index) {
+        return inos[index];
+    }
+
+    protected static int compare(byte[] a, int aOff, int aLen, byte[] b, int bOff, int bLen) {
+        int len = Math.min(aLen, bLen);
+        for (int i = 0; i < len; i++) {
+            int x = a[aOff + i] == SEPARATOR ? 0 : (a[aOff + i] & 0xff) + 1;
+            int y = b[bOff + i] == SEPARATOR ? 0 : (b[bOff + i] & 0xff) + 1;
+            if (x != y) {
+                return x - y;
+            }
+        }
+
+        return aLen - bLen;
+    }
+
+    /**
+     * Compares the path of entry i of this snapshot with the path of entry j of the other snapshot.
+     */
+    public int compare(int i, Snapshot other, int j) {
+        return compare(names, offsets[i], pathLength(i), other.names, other.offsets[j], other.pathLength(j));
+    }
+
+    /**
+     * Index of the entry with the path or -1.
+     */
+    public int indexOf(String path) {
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compare(names, offsets[mid], pathLength(mid), bytes, 0, bytes.length);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Index after the last descendant of the entry.
+     */
+    public int subtreeEnd(int index) {
+        int offset = offsets[index];
+        int length = pathLength(index);
+        int end = index + 1;
+        while (end < count && pathLength(end) > length && names[offsets[end] + length] == SEPARATOR
+                && compare(names, offsets[end], length, names, offset, length) == 0) {
+            end++;
+        }
+
+        return end;
+    }
+
+    /**
+     * True if entry i of this snapshot and entry j of the other snapshot have the same metadata.
+     * The change time (chmod, chown, link count) and the inode are only compared if both are known.
+     */
+    public boolean sameMetadata(int i, Snapshot other, int j) {
+        return modes[i] == other.modes[j] && sizes[i] == other.sizes[j] && mtimes[i] == other.mtimes[j]
+                && (ctimes[i] == 0 || other.ctimes[j] == 0 || ctimes[i] == other.ctimes[j])
+                && (inos[i] == 0 || other.inos[j] == 0 || inos[i] == other.inos[j]);
+    }
+
+    /**
+     * Iterates the differences between an old and a new snapshot in path order.
+     */
+    public static class Diff {
+        protected final Snapshot from;
+        protected final Snapshot to;
+        protected int i;
+        protected int j;
+        protected int kind;
+        protected Snapshot snapshot;
+        protected int index;
+
+        public Diff(Snapshot from, Snapshot to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Advances to the next difference, returns false if there is none.
+         */
+        public boolean next() {
+            while (i < from.count || j < to.count) {
+                int cmp;
+                if (i >= from.count) {
+                    cmp = 1;
+                } else if (j >= to.count) {
+                    cmp = -1;
+                } else {
+                    cmp = from.compare(i, to, j);
+                }
+
+                if (cmp < 0) {
+                    set(REMOVED, from, i++);
+                    return true;
+                }
+
+                if (cmp > 0) {
+                    set(ADDED, to, j++);
+                    return true;
+                }
+
+                boolean same = from.sameMetadata(i, to, j);
+                i++;
+                if (!same) {
+                    set(MODIFIED, to, j++);
+                    return true;
+                }
+                j++;
+            }
+
+            return false;
+        }
+
+        protected void set(int kind, Snapshot snapshot, int index) {
+            this.kind = kind;
+            this.snapshot = snapshot;
+            this.index = index;
+        }
+
+        /**
+         * {@link #ADDED}, {@link #REMOVED} or {@link #MODIFIED}
+         */
+        public int kind() {
+            return kind;
+        }
+
+        /**
+         * The snapshot that contains the current entry, the old one for removed entries otherwise the new one.
+         */
+        public Snapshot snapshot() {
+            return snapshot;
+        }
+
+        public int index() {
+            return index;
+        }
+    }
+
+    /**
+     * Collects entries in any order. Not thread safe.
+     */
+    public static class Builder {
+        protected int count;
+        protected byte[] names;
+        protected int namesLength;
+        protected int[] offsets;
+        protected byte[] modes;
+        protected long[] sizes;
+        protected long[] mtimes;
+        protected long[] ctimes;
+        protected long[] inos;
+
+        public Builder() {
+            this(256, 4096);
+        }
+
+        public Builder(int capacity, int namesCapacity) {
+            capacity = Math.max(1, capacity);
+            names = new byte[Math.max(1, namesCapacity)];
+            offsets = new int[capacity + 1];
+            modes = new byte[capacity];
+            sizes = new long[capacity];
+            mtimes = new long[capacity];
+            ctimes = new long[capacity];
+            inos = new long[capacity];
+        }
+
+        public void add(String path, byte mode, long size, long mtime, long ctime, long ino) {
+            add(path.getBytes(StandardCharsets.UTF_8), 0, -1, mode, size, mtime, ctime, ino);
+        }
+
+        /**
+         * Adds entry index of another snapshot.
+         */
+        public void add(Snapshot snapshot, int index) {
+            add(snapshot.names, snapshot.offsets[index], snapshot.pathLength(index), snapshot.modes[index],
+                    snapshot.sizes[index], snapshot.mtimes[index], snapshot.ctimes[index], snapshot.inos[index]);
+        }
+
+        protected void add(byte[] path, int off, int len, byte mode, long size, long mtime, long ctime, long ino) {
+            if (len < 0) {
+                len = path.length - off;
+            }
+
+            if (count == modes.length) {
+                int capacity = count * 2;
+                offsets = Arrays.copyOf(offsets, capacity + 1);
+                modes = Arrays.copyOf(modes, capacity);
+                sizes = Arrays.copyOf(sizes, capacity);
+                mtimes = Arrays.copyOf(mtimes, capacity);
+                ctimes = Arrays.copyOf(ctimes, capacity);
+                inos = Arrays.copyOf(inos, capacity);
+            }
+
+            if (namesLength + len > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesLength + len));
+            }
+
+            System.arraycopy(path, off, names, namesLength, len);
+            offsets[count] = namesLength;
+            namesLength += len;
+            offsets[count+1] = namesLength;
+            modes[count] = mode;
+            sizes[count] = size;
+            mtimes[count] = mtime;
+            ctimes[count] = ctime;
+            inos[count] = ino;
+            count++;
+        }
+
+        /**
+         * Sorts the entries and returns the snapshot. Entries with the same path are only kept once.
+         */
+        public Snapshot build() {
+            final Snapshot unsorted = new Snapshot(count, names, offsets, modes, sizes, mtimes, ctimes, inos);
+            int[] order = new int[count];
+            boolean sorted = true;
+            for (int i = 0; i < count; i++) {
+                order[i] = i;
+                if (sorted && i > 0 && unsorted.compare(i-1, unsorted, i) >= 0) {
+                    sorted = false;
+                }
+            }
+
+            if (sorted) {
+                //Already in order (for example when read from a file), only trim the arrays
+                return new Snapshot(count, Arrays.copyOf(names, namesLength), Arrays.copyOf(offsets, count + 1),
+                        Arrays.copyOf(modes, count), Arrays.copyOf(sizes, count), Arrays.copyOf(mtimes, count),
+                        Arrays.copyOf(ctimes, count), Arrays.copyOf(inos, count));
+            }
+
+            sort(unsorted, order, new int[count], 0, count);
+
+            Builder result = new Builder(count, namesLength);
+            int last = -1;
+            for (int i = 0; i < count; i++) {
+                int index = order[i];
+                if (last >= 0 && unsorted.compare(last, unsorted, index) == 0) {
+                    continue;
+                }
+                result.add(unsorted, index);
+                last = index;
+            }
+
+            return new Snapshot(result.count, result.names, Arrays.copyOf(result.offsets, result.count + 1),
+                    Arrays.copyOf(result.modes, result.count), Arrays.copyOf(result.sizes, result.count), Arrays.copyOf(result.mtimes, result.count),
+                    Arrays.copyOf(result.ctimes, result.count), Arrays.copyOf(result.inos, result.count));
+        }
+
+        /**
+         * Merge sort of the entry indices in order[from, to) by path, tmp has the same length as order.
+         * Sorting a boxed Integer[] would allocate an object per entry on top of the packed arrays.
+         */
+        protected static void sort(Snapshot snapshot, int[] order, int[] tmp, int from, int to) {
+            if (to - from <= 16) {
+                for (int i = from + 1; i < to; i++) {
+                    int value = order[i];
+                    int j = i - 1;
+                    while (j >= from && snapshot.compare(order[j], snapshot, value) > 0) {
+                        order[j + 1] = order[j];
+                        j--;
+                    }
+                    order[j + 1] = value;
+                }
+                return;
+            }
+
+            int middle = (from + to) >>> 1;
+            sort(snapshot, order, tmp, from, middle);
+            sort(snapshot, order, tmp, middle, to);
+            if (snapshot.compare(order[middle - 1], snapshot, order[middle]) <= 0) {
+                return;
+            }
+
+            System.arraycopy(order, from, tmp, from, to - from);
+            int i = from;
+            int j = middle;
+            for (int k = from; k < to; k++) {
+                if (j >= to || (i < middle && snapshot.compare(tmp[i], snapshot, tmp[j]) <= 0)) {
+                    order[k] = tmp[i++];
+                } else {
+                    order[k] = tmp[j++];
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,379 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a directory tree. Every directory is copied by its own task and regular files are copied by tasks of their own,
+ * so on a {@link ForkJoinPool} listing, metadata and data I/O of independent entries overlap.
+ * The number of concurrent operations is bounded by the parallelism of the pool.
+ * Errors of single entries do not stop the copy, they are collected and can be read once the copy is done.
+ */
+public class TreeCopier {
+
+    /**
+     * Copies the content and attributes of single entries. Must be thread safe.
+     */
+    public interface EntryCopier {
+        void copyFile(Path src, Path dst, BasicFileAttributes attributes) throws IOException;
+
+        void copyAttributes(Path src, Path dst, BasicFileAttributes attributes) throws IOException;
+    }
+
+    /**
+     * What to do with symbolic links in the source tree.
+     */
+    public enum Links {
+        /**
+         * create a symbolic link with the same target
+         */
+        COPY,
+        /**
+         * copy the file or directory the link points to
+         */
+        FOLLOW,
+        /**
+         * ignore the link
+         */
+        SKIP
+    }
+
+    /**
+     * An entry that could not be copied.
+     */
+    public static class Failure {
+        /**
+         * path relative to the source root, empty string for the root itself
+         */
+        public final String path;
+        public final IOException error;
+
+        public Failure(String path, IOException error) {
+            this.path = path;
+            this.error = error;
+        }
+    }
+
+    /**
+     * The destination is the source or inside of it, copying would never end.
+     */
+    public static class DestinationInsideSourceException extends FileSystemException {
+        public DestinationInsideSourceException(String src, String dst) {
+            super(src, dst, "destination is inside of the source");
+        }
+    }
+
+    /**
+     * The entry is a fifo, socket or device. Opening a fifo for reading would block until a writer shows up.
+     */
+    public static class NotRegularFileException extends FileSystemException {
+        public NotRegularFileException(String path) {
+            super(path, null, "not a regular file");
+        }
+    }
+
+    private final Path src;
+    private final Path dst;
+    private final EntryCopier copier;
+    private final Links links;
+    private final boolean preserve;
+    private final boolean replace;
+    private final AtomicLong copied = new AtomicLong();
+    private final Queue<Failure> failures = new ConcurrentLinkedQueue<>();
+    private volatile boolean parallel = true;
+    private volatile Object dstKey;
+
+    public TreeCopier(Path src, Path dst, EntryCopier copier, Links links, boolean preserve, boolean replace) {
+        this.src = src;
+        this.dst = dst;
+        this.copier = copier;
+        this.links = links;
+        this.preserve = preserve;
+        this.replace = replace;
+    }
+
+    /**
+     * If false everything is copied by the calling thread.
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Number of entries copied so far.
+     */
+    public long getCopied() {
+        return copied.get();
+    }
+
+    public List<Failure> getFailures() {
+        return new ArrayList<>(failures);
+    }
+
+    /**
+     * Copies the tree on the pool. The root directory is created in the calling thread,
+     * failing to create it is the only error that is thrown instead of being collected.
+     * Throws {@link DestinationInsideSourceException} before anything is created if dst is src or below it.
+     */
+    public void copy(ForkJoinPool pool) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(src, BasicFileAttributes.class);
+        Path realSrc = src.toRealPath();
+        if (realPath(dst).startsWith(realSrc)) {
+            throw new DestinationInsideSourceException(src.toString(), dst.toString());
+        }
+
+        createDirectory(dst);
+        //Catches what the path check can't see, for example a link in the source that leads to the destination.
+        dstKey = Files.readAttributes(dst, BasicFileAttributes.class).fileKey();
+        copied.incrementAndGet();
+        DirectoryTask task = new DirectoryTask(null, src, dst, "", attributes);
+        if (parallel) {
+            pool.invoke(task);
+        } else {
+            task.invoke();
+        }
+    }
+
+    /**
+     * The real path of a path that may not exist yet, the missing part is appended to the real path of its closest existing parent.
+     */
+    private static Path realPath(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath().normalize();
+        for (Path existing = absolute; existing != null; existing = existing.getParent()) {
+            try {
+                return existing.toRealPath().resolve(existing.relativize(absolute));
+            } catch (NoSuchFileException exc) {
+                //Try the parent
+            }
+        }
+
+        return absolute;
+    }
+
+    private void fail(String path, IOException exc) {
+        failures.add(new Failure(path, exc));
+    }
+
+    private void createDirectory(Path path) throws IOException {
+        try {
+            Files.createDirectory(path);
+        } catch (FileAlreadyExistsException exc) {
+            if (!replace || !Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                throw exc;
+            }
+        }
+    }
+
+    private static String child(String parent, Path name) {
+        return parent.isEmpty() ? name.toString() : parent + File.separator + name;
+    }
+
+    private void joinAll(List<ForkJoinTask<?>> tasks) {
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        /**
+         * the directory this one was found in, used to detect link loops
+         */
+        private final DirectoryTask parent;
+        private final Path from;
+        private final Path to;
+        private final String path;
+        private final BasicFileAttributes attributes;
+
+        private DirectoryTask(DirectoryTask parent, Path from, Path to, String path, BasicFileAttributes attributes) {
+            this.parent = parent;
+            this.from = from;
+            this.to = to;
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected void compute() {
+            if (!path.isEmpty()) {
+                try {
+                    createDirectory(to);
+                    copied.incrementAndGet();
+                } catch (IOException exc) {
+                    fail(path, exc);
+                    return;
+                }
+            }
+
+            List<ForkJoinTask<?>> forked = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(from)) {
+                for (Path entry : stream) {
+                    Path name = entry.getFileName();
+                    ForkJoinTask<?> task = entry(entry, to.resolve(name.toString()), child(path, name));
+                    if (task == null) {
+                        continue;
+                    }
+
+                    if (parallel && inForkJoinPool()) {
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        task.invoke();
+                    }
+                }
+            } catch (IOException exc) {
+                fail(path, exc);
+            } catch (DirectoryIteratorException exc) {
+                fail(path, exc.getCause());
+            } finally {
+                joinAll(forked);
+            }
+
+            if (preserve) {
+                //Only after the content is complete since creating entries changes the modification time.
+                try {
+                    copier.copyAttributes(from, to, attributes);
+                } catch (IOException exc) {
+                    fail(path, exc);
+                }
+            }
+        }
+
+        /**
+         * Returns the task that copies the entry, symbolic links are handled right away.
+         */
+        private ForkJoinTask<?> entry(Path from, Path to, String path) {
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(from, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                if (attributes.isSymbolicLink()) {
+                    if (links == Links.SKIP) {
+                        return null;
+                    }
+
+                    if (links == Links.COPY) {
+                        copyLink(from, to);
+                        copied.incrementAndGet();
+                        return null;
+                    }
+
+                    attributes = Files.readAttributes(from, BasicFileAttributes.class);
+                }
+            } catch (IOException exc) {
+                fail(path, exc);
+                return null;
+            }
+
+            if (attributes.isDirectory()) {
+                if (dstKey != null && dstKey.equals(attributes.fileKey())) {
+                    //The destination itself, already being copied to
+                    return null;
+                }
+
+                if (links == Links.FOLLOW && isAncestor(attributes.fileKey())) {
+                    fail(path, new FileSystemLoopException(from.toString()));
+                    return null;
+                }
+                return new DirectoryTask(this, from, to, path, attributes);
+            }
+
+            if (attributes.isOther()) {
+                fail(path, new NotRegularFileException(from.toString()));
+                return null;
+            }
+
+            return new FileTask(from, to, path, attributes);
+        }
+
+        private boolean isAncestor(Object key) {
+            if (key == null) {
+                return false;
+            }
+
+            for (DirectoryTask task = this; task != null; task = task.parent) {
+                if (key.equals(task.attributes.fileKey())) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void copyLink(Path from, Path to) throws IOException {
+            Path target = Files.readSymbolicLink(from);
+            try {
+                Files.createSymbolicLink(to, target);
+            } catch (FileAlreadyExistsException exc) {
+                if (!replace || Files.isDirectory(to, LinkOption.NOFOLLOW_LINKS)) {
+                    throw exc;
+                }
+
+                Files.delete(to);
+                Files.createSymbolicLink(to, target);
+            }
+        }
+    }
+
+    private class FileTask extends RecursiveAction {
+        private final Path from;
+        private final Path to;
+        private final String path;
+        private final BasicFileAttributes attributes;
+
+        private FileTask(Path from, Path to, String path, BasicFileAttributes attributes) {
+            this.from = from;
+            this.to = to;
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                copier.copyFile(from, to, attributes);
+                if (preserve) {
+                    copier.copyAttributes(from, to, attributes);
+                }
+                copied.incrementAndGet();
+            } catch (IOException exc) {
+                fail(path, exc);
+            }
+        }
+    }
+}
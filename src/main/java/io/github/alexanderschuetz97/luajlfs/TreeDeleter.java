@@ -0,0 +1,360 @@
+//
+// Copyright Alexander Schütz, 2021
+//
+// This file is part of LuajLFS.
+//
+// LuajLFS is free software: you can redistribute it and/or modify
+// it under the terms of the GNU Lesser General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// LuajLFS is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU Lesser General Public License for more details.
+//
+// A copy of the GNU Lesser General Public License should be provided
+// in the COPYING & COPYING.LESSER files in top level directory of LuajLFS.
+// If not, see <https://www.gnu.org/licenses/>.
+//
+package io.github.alexanderschuetz97.luajlfs;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Deletes a directory tree. Symbolic links are deleted, never followed.
+ * If the JVM supports {@link SecureDirectoryStream} (Linux) every directory is opened relative to the fd of its parent
+ * and its entries are unlinked relative to its own fd (openat/unlinkat), otherwise every entry is deleted by its path.
+ * Subdirectories can be deleted concurrently on a {@link ForkJoinPool}.
+ */
+public class TreeDeleter {
+
+    private final Path root;
+    private final boolean parallel;
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicReference<IOException> error = new AtomicReference<>();
+    private volatile boolean cancelled;
+
+    public TreeDeleter(Path root, boolean parallel) {
+        this.root = root;
+        this.parallel = parallel;
+    }
+
+    /**
+     * Number of entries deleted so far. Safe to call from any thread while the deletion is running.
+     */
+    public long getDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * Stops the deletion as soon as possible. Entries already deleted stay deleted.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Starts the deletion on the pool. The future completes once everything is deleted, {@link #getError()} contains the first error.
+     */
+    public ForkJoinTask<?> submit(ForkJoinPool pool) {
+        return pool.submit(new RootTask());
+    }
+
+    /**
+     * Deletes in the calling thread, subdirectories are only deleted concurrently if parallel is set and this is called from a pool.
+     */
+    public void run() throws IOException {
+        new RootTask().invoke();
+        IOException exc = error.get();
+        if (exc != null) {
+            throw exc;
+        }
+    }
+
+    /**
+     * The first error that occurred or null. Deletion continues after errors with the remaining entries.
+     */
+    public IOException getError() {
+        return error.get();
+    }
+
+    /*
+     * Every file system call goes through one of these so the number of calls can be counted.
+     * Links are never followed. They may be called concurrently if parallel is set.
+     */
+
+    protected boolean fsIsSymbolicLink(Path path) {
+        return Files.isSymbolicLink(path);
+    }
+
+    protected boolean fsIsDirectory(Path path) {
+        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    protected DirectoryStream<Path> fsNewDirectoryStream(Path path) throws IOException {
+        return Files.newDirectoryStream(path);
+    }
+
+    protected void fsDelete(Path path) throws IOException {
+        Files.delete(path);
+    }
+
+    protected SecureDirectoryStream<Path> fsNewDirectoryStream(SecureDirectoryStream<Path> parent, Path name) throws IOException {
+        return parent.newDirectoryStream(name, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    protected BasicFileAttributes fsReadAttributes(SecureDirectoryStream<Path> parent, Path name) throws IOException {
+        return parent.getFileAttributeView(name, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS).readAttributes();
+    }
+
+    protected void fsDelete(SecureDirectoryStream<Path> parent, Path name, boolean directory) throws IOException {
+        if (directory) {
+            parent.deleteDirectory(name);
+        } else {
+            parent.deleteFile(name);
+        }
+    }
+
+    private void fail(IOException exc) {
+        error.compareAndSet(null, exc);
+    }
+
+    private class RootTask extends RecursiveAction {
+        @Override
+        protected void compute() {
+            try {
+                if (fsIsSymbolicLink(root)) {
+                    fsDelete(root);
+                    deleted.incrementAndGet();
+                    return;
+                }
+
+                DirectoryStream<Path> stream = fsNewDirectoryStream(root);
+                if (stream instanceof SecureDirectoryStream) {
+                    new SecureTask(null, null, (SecureDirectoryStream<Path>) stream).compute();
+                } else {
+                    new PathTask(null, stream).compute();
+                }
+
+                if (!cancelled) {
+                    fsDelete(root);
+                    deleted.incrementAndGet();
+                }
+            } catch (IOException exc) {
+                fail(exc);
+            }
+        }
+    }
+
+    private void joinAll(List<? extends ForkJoinTask<?>> tasks) {
+        for (ForkJoinTask<?> task : tasks) {
+            try {
+                task.join();
+            } catch (CancellationException exc) {
+                //DC
+            }
+        }
+    }
+
+    /**
+     * Deletes the content of a directory using fd relative operations.
+     * The directory is only opened once the task runs so queued tasks don't hold file descriptors,
+     * the parent stays open until all its tasks are done.
+     */
+    private class SecureTask extends RecursiveAction {
+        private final SecureDirectoryStream<Path> parent;
+        private final Path name;
+        private SecureDirectoryStream<Path> stream;
+
+        private SecureTask(SecureDirectoryStream<Path> parent, Path name, SecureDirectoryStream<Path> stream) {
+            this.parent = parent;
+            this.name = name;
+            this.stream = stream;
+        }
+
+        @Override
+        protected void compute() {
+            if (stream == null) {
+                if (cancelled) {
+                    return;
+                }
+
+                try {
+                    stream = fsNewDirectoryStream(parent, name);
+                } catch (IOException exc) {
+                    fail(exc);
+                    return;
+                }
+            }
+
+            List<SecureTask> forked = new ArrayList<>();
+            List<Path> directories = new ArrayList<>();
+            try {
+                for (Path entry : stream) {
+                    if (cancelled) {
+                        break;
+                    }
+
+                    Path child = entry.getFileName();
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = fsReadAttributes(stream, child);
+                    } catch (NoSuchFileException exc) {
+                        continue;
+                    } catch (IOException exc) {
+                        fail(exc);
+                        continue;
+                    }
+
+                    if (!attributes.isDirectory()) {
+                        delete(child, false);
+                        continue;
+                    }
+
+                    directories.add(child);
+                    SecureTask task = new SecureTask(stream, child, null);
+                    if (parallel && inForkJoinPool()) {
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        task.compute();
+                    }
+                }
+
+                joinAll(forked);
+
+                for (Path child : directories) {
+                    if (cancelled) {
+                        break;
+                    }
+                    delete(child, true);
+                }
+            } catch (RuntimeException exc) {
+                //DirectoryIteratorException
+                fail(exc.getCause() instanceof IOException ? (IOException) exc.getCause() : new IOException(exc));
+                joinAll(forked);
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException exc) {
+                    //DC
+                }
+            }
+        }
+
+        private void delete(Path child, boolean directory) {
+            try {
+                fsDelete(stream, child, directory);
+                deleted.incrementAndGet();
+            } catch (NoSuchFileException exc) {
+                //Already gone
+            } catch (IOException exc) {
+                fail(exc);
+            }
+        }
+    }
+
+    /**
+     * Deletes the content of a directory by path.
+     */
+    private class PathTask extends RecursiveAction {
+        private final Path dir;
+        private DirectoryStream<Path> stream;
+
+        private PathTask(Path dir, DirectoryStream<Path> stream) {
+            this.dir = dir;
+            this.stream = stream;
+        }
+
+        @Override
+        protected void compute() {
+            if (stream == null) {
+                if (cancelled) {
+                    return;
+                }
+
+                try {
+                    stream = fsNewDirectoryStream(dir);
+                } catch (IOException exc) {
+                    fail(exc);
+                    return;
+                }
+            }
+
+            List<PathTask> forked = new ArrayList<>();
+            List<Path> directories = new ArrayList<>();
+            try {
+                for (Path entry : stream) {
+                    if (cancelled) {
+                        break;
+                    }
+
+                    if (!fsIsDirectory(entry)) {
+                        delete(entry);
+                        continue;
+                    }
+
+                    directories.add(entry);
+                    PathTask task = new PathTask(entry, null);
+                    if (parallel && inForkJoinPool()) {
+                        task.fork();
+                        forked.add(task);
+                    } else {
+                        task.compute();
+                    }
+                }
+
+                joinAll(forked);
+
+                for (Path entry : directories) {
+                    if (cancelled) {
+                        break;
+                    }
+                    delete(entry);
+                }
+            } catch (RuntimeException exc) {
+                //DirectoryIteratorException
+                fail(exc.getCause() instanceof IOException ? (IOException) exc.getCause() : new IOException(exc));
+                joinAll(forked);
+            } finally {
+                try {
+                    stream.close();
+                } catch (IOException exc) {
+                    //DC
+                }
+            }
+        }
+
+        private void delete(Path entry) {
+            try {
+                fsDelete(entry);
+                deleted.incrementAndGet();
+            } catch (NoSuchFileException exc) {
+                //Already gone
+            } catch (IOException exc) {
+                fail(exc);
+            }
+        }
+    }
+}
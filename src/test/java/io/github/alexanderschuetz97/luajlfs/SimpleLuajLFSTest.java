@@ -19,6 +19,8 @@
 //
 package io.github.alexanderschuetz97.luajlfs;
 
+import io.github.alexanderschuetz97.luajfshook.api.LuaFileSystemHandler;
+import io.github.alexanderschuetz97.luajfshook.api.LuaPath;
 import io.github.alexanderschuetz97.luajfshook.api.LuajFSHook;
 import org.junit.Assert;
 import org.junit.Ignore;
@@ -33,6 +35,13 @@ import org.luaj.vm2.lib.jse.JsePlatform;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -119,4 +128,245 @@ public class SimpleLuajLFSTest {
 
 
     }
+
+    @Test
+    public void testMetadataCache() {
+        MetadataCache cache = new MetadataCache(64, 60000);
+        globals = JsePlatform.standardGlobals();
+        LuajFSHook.install(globals);
+        LuajLFSLib lib = new LuajLFSLib();
+        lib.setMetadataCache(cache);
+        globals.load(lib);
+        LuaValue lfs = globals.load("return require(\"lfs\")").call();
+        lfs.get("chdir").call("src/test/java/TestFolder");
+
+        Assert.assertEquals(10, lfs.get("attributes").call(LuaValue.valueOf("tt2"), LuaValue.valueOf("size")).toint());
+        Assert.assertEquals(10, lfs.get("attributes").call(LuaValue.valueOf("tt2"), LuaValue.valueOf("size")).toint());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        lfs.get("touch").call("tt2");
+        Assert.assertEquals(10, lfs.get("attributes").call(LuaValue.valueOf("tt2"), LuaValue.valueOf("size")).toint());
+        Assert.assertEquals(2, cache.getMisses());
+
+        lfs.get("invalidate").call("tt2");
+        lfs.get("attributes").call("tt2");
+        Assert.assertEquals(3, cache.getMisses());
+
+        LuaValue stats = lfs.get("cache_stats").call();
+        Assert.assertEquals(1, stats.get("hits").toint());
+        Assert.assertEquals(3, stats.get("misses").toint());
+    }
+
+    /**
+     * Counts the file system calls made by mkdir, rmdir, chdir and dir, including the ones made by the {@link TreeDeleter}.
+     */
+    private static class CountingLuajLFS extends LuajLFSJSE {
+        private int calls;
+
+        private CountingLuajLFS(LuaFileSystemHandler dirHandler, Globals globals, LuaTable table, boolean optimistic) {
+            super(dirHandler, globals, table);
+            this.optimistic = optimistic;
+        }
+
+        @Override
+        protected boolean fsExists(LuaPath path) {
+            calls++;
+            return super.fsExists(path);
+        }
+
+        @Override
+        protected boolean fsIsDir(LuaPath path) {
+            calls++;
+            return super.fsIsDir(path);
+        }
+
+        @Override
+        protected void fsMkdir(LuaPath path) throws IOException {
+            calls++;
+            super.fsMkdir(path);
+        }
+
+        @Override
+        protected BasicFileAttributes fsReadAttributes(Path path) throws IOException {
+            calls++;
+            return super.fsReadAttributes(path);
+        }
+
+        @Override
+        protected void fsCreateDirectory(Path path, FileAttribute<?>... attributes) throws IOException {
+            calls++;
+            super.fsCreateDirectory(path, attributes);
+        }
+
+        @Override
+        protected DirectoryStream<Path> fsNewDirectoryStream(Path path) throws IOException {
+            calls++;
+            return super.fsNewDirectoryStream(path);
+        }
+
+        @Override
+        protected boolean fsIsLink(LuaPath path) {
+            calls++;
+            return super.fsIsLink(path);
+        }
+
+        @Override
+        protected void fsDelete(LuaPath path) throws IOException {
+            calls++;
+            super.fsDelete(path);
+        }
+
+        @Override
+        protected void fsWalkFileTree(LuaPath path, LuaPath.LuaFileVisitor visitor) throws IOException {
+            calls++;
+            super.fsWalkFileTree(path, visitor);
+        }
+
+        @Override
+        protected void fsSetWorkDirectory(LuaPath path) throws IOException {
+            calls++;
+            super.fsSetWorkDirectory(path);
+        }
+
+        @Override
+        protected TreeDeleter newTreeDeleter(Path root, boolean parallel) {
+            return new TreeDeleter(root, parallel) {
+                @Override
+                protected boolean fsIsSymbolicLink(Path path) {
+                    calls++;
+                    return super.fsIsSymbolicLink(path);
+                }
+
+                @Override
+                protected boolean fsIsDirectory(Path path) {
+                    calls++;
+                    return super.fsIsDirectory(path);
+                }
+
+                @Override
+                protected DirectoryStream<Path> fsNewDirectoryStream(Path path) throws IOException {
+                    calls++;
+                    return super.fsNewDirectoryStream(path);
+                }
+
+                @Override
+                protected void fsDelete(Path path) throws IOException {
+                    calls++;
+                    super.fsDelete(path);
+                }
+
+                @Override
+                protected SecureDirectoryStream<Path> fsNewDirectoryStream(SecureDirectoryStream<Path> parent, Path name) throws IOException {
+                    calls++;
+                    return super.fsNewDirectoryStream(parent, name);
+                }
+
+                @Override
+                protected BasicFileAttributes fsReadAttributes(SecureDirectoryStream<Path> parent, Path name) throws IOException {
+                    calls++;
+                    return super.fsReadAttributes(parent, name);
+                }
+
+                @Override
+                protected void fsDelete(SecureDirectoryStream<Path> parent, Path name, boolean directory) throws IOException {
+                    calls++;
+                    super.fsDelete(parent, name, directory);
+                }
+            };
+        }
+
+        private int reset() {
+            int result = calls;
+            calls = 0;
+            return result;
+        }
+    }
+
+    private CountingLuajLFS counting;
+
+    private LuaValue mkCountingGlobals(final boolean optimistic) {
+        globals = JsePlatform.standardGlobals();
+        LuajFSHook.install(globals);
+        globals.load(new LuajLFSLib() {
+            @Override
+            protected LuajLFSCommon loadLinux(LuaFileSystemHandler handler, Globals globals, LuaTable lfsTable) {
+                return loadOther(handler, globals, lfsTable);
+            }
+
+            @Override
+            protected LuajLFSCommon loadWindows(LuaFileSystemHandler handler, Globals globals, LuaTable lfsTable) {
+                return loadOther(handler, globals, lfsTable);
+            }
+
+            @Override
+            protected LuajLFSCommon loadOther(LuaFileSystemHandler handler, Globals globals, LuaTable lfsTable) {
+                counting = new CountingLuajLFS(handler, globals, lfsTable, optimistic);
+                return counting;
+            }
+        });
+        return globals.load("return require(\"lfs\")").call();
+    }
+
+    private static String errorOf(LuaValue lfs, String function, String base, String path) {
+        Varargs result = lfs.get(function).invoke(LuaValue.valueOf(base + path));
+        return result.arg(2).tojstring().replace(base, "") + " " + result.arg(3).tojstring();
+    }
+
+    @Test
+    public void testResolveCacheKey() {
+        mkCountingGlobals(false);
+        Assert.assertSame(counting.resolve("resolved"), counting.resolve(LuaValue.valueOf("resolved")));
+    }
+
+    @Test
+    public void testOptimisticCallCount() throws IOException {
+        String[][] errors = new String[2][];
+        for (int mode = 0; mode < 2; mode++) {
+            boolean optimistic = mode == 1;
+            LuaValue lfs = mkCountingGlobals(optimistic);
+            String base = Files.createTempDirectory("lfscount").toString();
+            LuaValue dir = LuaValue.valueOf(base + "/a");
+            counting.reset();
+
+            Assert.assertEquals(LuaValue.TRUE, lfs.get("mkdir").call(dir));
+            Assert.assertEquals(optimistic ? 1 : 3, counting.reset());
+
+            //create and the check that the existing entry is a directory
+            LuaTable parents = new LuaTable();
+            parents.set("parents", LuaValue.TRUE);
+            Assert.assertEquals(LuaValue.TRUE, lfs.get("mkdir").call(dir, parents));
+            Assert.assertEquals(2, counting.reset());
+
+            lfs.get("dir").call(dir);
+            Assert.assertEquals(optimistic ? 1 : 3, counting.reset());
+
+            //stat and the check of the handler
+            Assert.assertEquals(LuaValue.TRUE, lfs.get("chdir").call(dir));
+            Assert.assertEquals(optimistic ? 2 : 3, counting.reset());
+
+            //optimistic: stat, lstat, opendir and rmdir. otherwise: exists, isDir, the walk, isLink and rmdir
+            Assert.assertEquals(LuaValue.TRUE, lfs.get("rmdir").call(dir));
+            Assert.assertEquals(optimistic ? 4 : 5, counting.reset());
+
+            Files.createFile(Paths.get(base, "file"));
+            errors[mode] = new String[] {
+                    errorOf(lfs, "mkdir", base, "/file"),
+                    errorOf(lfs, "mkdir", base, "/missing/a"),
+                    errorOf(lfs, "rmdir", base, "/missing"),
+                    errorOf(lfs, "rmdir", base, "/file"),
+                    errorOf(lfs, "chdir", base, "/missing"),
+                    errorOf(lfs, "chdir", base, "/file"),
+            };
+
+            if (optimistic) {
+                //The pre checks only know if the path exists
+                Assert.assertTrue(errorOf(lfs, "chdir", base, "/file/a").contains("Not a directory"));
+            }
+
+            Assert.assertEquals(LuaValue.TRUE, lfs.get("rmdir").call(LuaValue.valueOf(base)));
+        }
+
+        Assert.assertArrayEquals(errors[0], errors[1]);
+    }
 }
@@ -184,6 +184,528 @@ for i,v in ipairs(randomTab) do
     assert(readFile(file) == base, "file content mismatch")
 end
 
+print("test typed lfs.dir")
+local typedCount = 0
+for file, mode, ino in lfs.dir(".", {type = true}) do
+    typedCount = typedCount + 1
+    assert(mode == lfs.symlinkattributes(file, "mode"), "typed lfs.dir mode mismatch for " .. file, mode)
+    assert(type(ino) == "number", "typed lfs.dir ino is not a number for " .. file)
+end
+assert(typedCount == #gotOrdered, "typed lfs.dir count mismatch")
+
+print("test lfs.walk")
+local walked = 0
+local walkedRoot = false
+assert(lfs.walk(".", function(path, mode, depth)
+    if depth == 0 then
+        walkedRoot = path == "." and mode == "directory"
+        return
+    end
+
+    walked = walked + 1
+    assert(depth == 1, "lfs.walk ignored maxdepth for " .. path)
+    assert(mode == lfs.symlinkattributes(path, "mode"), "lfs.walk mode mismatch for " .. path, mode)
+end, {maxdepth = 1}) == true, "lfs.walk failed")
+assert(walkedRoot, "lfs.walk did not visit the root")
+assert(walked == #gotOrdered - 2, "lfs.walk count mismatch")
+
+local pruned = 0
+assert(lfs.walk(".", function(path, mode, depth)
+    pruned = pruned + 1
+    return depth == 0
+end) == true, "lfs.walk with pruning failed")
+assert(pruned == #gotOrdered - 1, "lfs.walk did not prune the subtrees")
+
+if pathSeperator == "/" then
+    for _, rootParallel in ipairs({false, true}) do
+        lfs.walk("/", function(path, mode, depth)
+            assert(depth == 0 or path:sub(1, 2) ~= "//", "lfs.walk of / returned " .. path)
+        end, {maxdepth = 1, parallel = rootParallel})
+    end
+end
+
+print("test parallel lfs.walk")
+for _, ordered in ipairs({true, false}) do
+    local walkedParallel = {}
+    local walkedParallelCount = 0
+    local previous = nil
+    assert(lfs.walk(".", function(path, mode, depth)
+        assert(not walkedParallel[path], "parallel lfs.walk visited " .. path .. " twice")
+        walkedParallel[path] = mode
+        walkedParallelCount = walkedParallelCount + 1
+        if ordered and depth == 1 then
+            assert(previous == nil or previous < path, "ordered parallel lfs.walk is not sorted", previous, path)
+            previous = path
+        end
+    end, {maxdepth = 1, parallel = true, ordered = ordered}) == true, "parallel lfs.walk failed")
+    assert(walkedParallelCount == #gotOrdered - 1, "parallel lfs.walk count mismatch")
+
+    local prunedParallel = 0
+    assert(lfs.walk(".", function(path, mode, depth)
+        prunedParallel = prunedParallel + 1
+        return depth == 0
+    end, {parallel = true, ordered = ordered}) == true, "parallel lfs.walk with pruning failed")
+    assert(prunedParallel == #gotOrdered - 1, "parallel lfs.walk did not prune the subtrees")
+end
+local _, walkErrors = lfs.walk(".", function() end, {maxdepth = 1, parallel = true})
+assert(walkErrors == 0, "parallel lfs.walk reported errors")
+local _, _, walkCode = lfs.walk("this_hopefully_does_not_exist", function() end, {parallel = true})
+assert(walkCode == 2, "parallel lfs.walk of non existant directory returned wrong error code " .. tostring(walkCode))
+
+print("test lfs.attributes_many")
+local manyPaths = {}
+for i, v in ipairs(randomTab) do
+    manyPaths[#manyPaths + 1] = tostring(v) .. ".file"
+    manyPaths[#manyPaths + 1] = tostring(v)
+end
+manyPaths[#manyPaths + 1] = "this_hopefully_does_not_exist"
+
+for _, parallel in ipairs({false, true}) do
+    local many, manyErrors = lfs.attributes_many(manyPaths, nil, {parallel = parallel})
+    assert(#many == #manyPaths, "lfs.attributes_many result count mismatch")
+    for i, v in ipairs(randomTab) do
+        assert(many[i * 2 - 1].mode == "file", "lfs.attributes_many file mode mismatch")
+        assert(many[i * 2 - 1].size == #tostring(v), "lfs.attributes_many file size mismatch")
+        assert(many[i * 2].mode == "directory", "lfs.attributes_many dir mode mismatch")
+    end
+    assert(many[#manyPaths] == false, "lfs.attributes_many on non existant file succeeded")
+    assert(manyErrors[#manyPaths][1] == "No such file or directory", "lfs.attributes_many error message mismatch", manyErrors[#manyPaths][1])
+end
+
+local manyModes = lfs.attributes_many(manyPaths, "mode")
+assert(manyModes[1] == "file" and manyModes[2] == "directory", "lfs.attributes_many with single attribute failed")
+
+print("test lfs.attributes field projection")
+local projMode, projSize = lfs.attributes(manyPaths[1], "mode", "size")
+assert(projMode == "file" and projSize == #tostring(randomTab[1]), "lfs.attributes multiple names failed")
+local projFields = lfs.fields({"size", "modification"})
+local proj = lfs.attributes(manyPaths[1], projFields)
+assert(proj.size == projSize and proj.modification == lfs.attributes(manyPaths[1], "modification"), "lfs.attributes field list failed")
+assert(proj.mode == nil, "lfs.attributes field list returned unrequested attribute")
+assert(lfs.attributes(manyPaths[1], lfs.fields("size", "modification")).size == projSize, "lfs.fields with multiple arguments failed")
+assert(pcall(lfs.fields, {"mode", "nonsense"}) == false, "lfs.fields accepted invalid attribute name")
+local fillTable = {"keep"}
+assert(lfs.attributes(manyPaths[1], fillTable) == fillTable and fillTable.mode == "file" and fillTable[1] == "keep", "table with array part was not filled")
+local manyProj = lfs.attributes_many(manyPaths, lfs.fields({"mode"}))
+assert(manyProj[1].mode == "file" and manyProj[1].size == nil, "lfs.attributes_many with field list failed")
+
+print("test lfs.attributes sub second timestamps")
+local nsecMod, nsecChange, nsecAccess = lfs.attributes(manyPaths[1], "modification_nsec", "change_nsec", "access_nsec")
+assert(type(nsecMod) == "number" and nsecMod >= 0 and nsecMod < 1000000000, "modification_nsec out of range")
+assert(type(nsecChange) == "number" and nsecChange >= 0 and nsecChange < 1000000000, "change_nsec out of range")
+assert(type(nsecAccess) == "number" and nsecAccess >= 0 and nsecAccess < 1000000000, "access_nsec out of range")
+local birth = lfs.attributes(manyPaths[1], "birth")
+assert(birth == nil or type(birth) == "number", "birth has wrong type")
+assert(lfs.attributes(manyPaths[1]).modification_nsec == nil, "full table contains extended attribute")
+local nsecMany = lfs.attributes_many({manyPaths[1]}, lfs.fields({"modification", "modification_nsec"}))
+assert(nsecMany[1].modification_nsec == nsecMod, "lfs.attributes_many modification_nsec mismatch")
+
+print("test lfs.attributes on file handle")
+local handle = io.open("handle.txt", "w")
+handle:write("12345")
+handle:flush()
+local handleAttr = lfs.attributes(handle)
+assert(handleAttr.mode == "file", "lfs.attributes on file handle returned wrong mode")
+assert(handleAttr.size == 5, "lfs.attributes on file handle returned wrong size")
+assert(handleAttr.modification == nil or handleAttr.modification > 0, "lfs.attributes on file handle returned epoch 0 as modification")
+assert(lfs.attributes(handle, "size") == 5, "lfs.attributes on file handle with name failed")
+handle:close()
+assert(lfs.attributes(handle) == nil, "lfs.attributes on closed file handle succeeded")
+assert(os.remove("handle.txt"), "removing handle.txt failed")
+
+print("test lfs.opendir")
+local handle = lfs.opendir(".")
+assert(handle ~= nil, "lfs.opendir failed")
+assert(handle:mkdir("handledir") == true, "handle:mkdir failed")
+assert(handle:mkdir("handledir") == nil, "handle:mkdir on existing directory succeeded")
+assert(handle:attributes("handledir", "mode") == "directory", "handle:attributes returned wrong mode")
+local subHandle = handle:opendir("handledir")
+assert(subHandle ~= nil, "handle:opendir failed")
+local handleFile = io.open(subHandle:path("a.txt"), "w")
+handleFile:write("abc")
+handleFile:close()
+assert(subHandle:attributes("a.txt").size == 3, "handle:attributes returned wrong size")
+assert(subHandle:symlinkattributes("a.txt", "mode") == "file", "handle:symlinkattributes returned wrong mode")
+local handleEntries = {}
+for entry in subHandle:dir() do
+    handleEntries[entry] = true
+end
+assert(handleEntries["a.txt"] and handleEntries["."] and handleEntries[".."], "handle:dir returned wrong entries")
+assert(handle:remove("handledir") == nil, "handle:remove on non empty directory succeeded")
+assert(subHandle:remove("a.txt") == true, "handle:remove on file failed")
+subHandle:close()
+assert(pcall(subHandle.attributes, subHandle, "a.txt") == false, "closed handle still usable")
+assert(lfs.link("handledir", "handlelink", true) == true, "link for handle:opendir failed")
+local linkHandle, _, linkCode = handle:opendir("handlelink")
+assert(linkHandle == nil and linkCode == 40, "handle:opendir followed a symbolic link " .. tostring(linkCode))
+assert(handle:remove("handlelink") == true, "handle:remove on link failed")
+assert(handle:remove("handledir") == true, "handle:remove on directory failed")
+assert(handle:attributes("handledir") == nil, "removed directory still exists")
+handle:close()
+
+print("test lfs.rmdir with options")
+for _, parallel in ipairs({false, true}) do
+    assert(lfs.mkdir("deltree") == true, "mkdir deltree failed")
+    for i = 1, 10 do
+        local sub = "deltree" .. pathSeperator .. "sub" .. i
+        assert(lfs.mkdir(sub) == true, "mkdir " .. sub .. " failed")
+        local f = io.open(sub .. pathSeperator .. "file.txt", "w")
+        f:write("x")
+        f:close()
+    end
+    local progressCalls = 0
+    local deleteOk, deleteCount = lfs.rmdir("deltree", {parallel = parallel, progress = function(count)
+        progressCalls = progressCalls + 1
+        assert(type(count) == "number", "progress called with non number")
+    end})
+    assert(deleteOk == true, "lfs.rmdir with options failed " .. tostring(deleteCount))
+    assert(deleteCount == 21, "lfs.rmdir with options deleted wrong number of entries " .. tostring(deleteCount))
+    assert(lfs.attributes("deltree") == nil, "lfs.rmdir with options did not delete directory")
+end
+local _, _, rmdirCode = lfs.rmdir("this_hopefully_does_not_exist", {})
+assert(rmdirCode == 2, "lfs.rmdir with options on non existant directory returned wrong error code " .. tostring(rmdirCode))
+local rmdirFile = io.open("rmdirfile", "w")
+rmdirFile:close()
+_, _, rmdirCode = lfs.rmdir("rmdirfile", {})
+assert(rmdirCode == 20, "lfs.rmdir with options on file returned wrong error code " .. tostring(rmdirCode))
+assert(os.remove("rmdirfile"), "removing rmdirfile failed")
+
+print("test lfs.mkdir with parents")
+local deepDir = "mkdirp" .. pathSeperator .. "a" .. pathSeperator .. "b" .. pathSeperator .. "c"
+assert(lfs.mkdir(deepDir) == nil, "lfs.mkdir without parents created missing parents")
+assert(lfs.mkdir(deepDir, {parents = true}) == true, "lfs.mkdir with parents failed")
+assert(lfs.attributes(deepDir, "mode") == "directory", "lfs.mkdir with parents did not create directory")
+assert(lfs.mkdir(deepDir, {parents = true}) == true, "lfs.mkdir with parents on existing directory failed")
+assert(lfs.mkdir(deepDir, {}) == nil, "lfs.mkdir without parents on existing directory succeeded")
+local mkdirFile = io.open("mkdirp" .. pathSeperator .. "file", "w")
+mkdirFile:close()
+assert(lfs.mkdir("mkdirp" .. pathSeperator .. "file", {parents = true}) == nil, "lfs.mkdir with parents on file succeeded")
+assert(lfs.mkdir("mkdirp" .. pathSeperator .. "file" .. pathSeperator .. "x", {parents = true}) == nil, "lfs.mkdir with parents below file succeeded")
+if pathSeperator == "/" then
+    assert(lfs.mkdir("mkdirp/octal", {mode = "750"}) == true, "lfs.mkdir with octal string mode failed")
+    assert(lfs.mkdir("mkdirp/symbolic", {mode = "rwxr-x---"}) == true, "lfs.mkdir with symbolic mode failed")
+    assert(lfs.attributes("mkdirp/octal", "permissions") == lfs.attributes("mkdirp/symbolic", "permissions"), "lfs.mkdir did not read mode string as octal")
+    assert(lfs.mkdir("mkdirp/private/leaf", {parents = true, mode = "700"}) == true, "lfs.mkdir with parents and mode failed")
+    assert(lfs.attributes("mkdirp/private/leaf", "permissions") == "rwx------", "lfs.mkdir did not apply mode to the leaf")
+    assert(lfs.attributes("mkdirp/private", "permissions") == lfs.attributes("mkdirp/a", "permissions"), "lfs.mkdir applied mode to a parent")
+end
+assert(lfs.rmdir("mkdirp") == true, "rmdir mkdirp failed")
+
+print("test lfs.copy")
+local copySrc = io.open("copysrc", "w")
+copySrc:write(string.rep("0123456789", 10000))
+copySrc:close()
+assert(lfs.touch("copysrc", 1000000, 1000000) == true, "touch copysrc failed")
+assert(lfs.copy("copysrc", "copydst") == true, "lfs.copy failed")
+local copyDst = io.open("copydst", "r")
+assert(copyDst:read("*a") == string.rep("0123456789", 10000), "lfs.copy content differs")
+copyDst:close()
+assert(lfs.attributes("copydst", "modification") ~= 1000000, "lfs.copy without preserve kept modification time")
+assert(lfs.copy("copysrc", "copydst", {replace = false}) == nil, "lfs.copy without replace overwrote existing file")
+assert(lfs.copy("copysrc", "copydst", {preserve = true}) == true, "lfs.copy with preserve failed")
+assert(lfs.attributes("copydst", "modification") == 1000000, "lfs.copy with preserve did not keep modification time")
+assert(lfs.attributes("copydst", "size") == 100000, "lfs.copy with preserve has wrong size")
+assert(lfs.copy("this_hopefully_does_not_exist", "copydst") == nil, "lfs.copy of non existant file succeeded")
+assert(lfs.mkdir("copydir") == true, "mkdir copydir failed")
+assert(lfs.copy("copydir", "copydst") == nil, "lfs.copy of directory succeeded")
+assert(lfs.copy("copysrc", "copydir") == nil, "lfs.copy onto directory succeeded")
+assert(lfs.rmdir("copydir") == true, "rmdir copydir failed")
+assert(lfs.link("copydst", "copylink", false) == true, "link copydst failed")
+copySrc = io.open("copysrc", "w")
+copySrc:write("replaced")
+copySrc:close()
+assert(lfs.copy("copysrc", "copydst") == true, "lfs.copy onto hard link failed")
+copyDst = io.open("copylink", "r")
+assert(copyDst:read("*a") == "replaced", "lfs.copy replaced dst instead of overwriting it")
+copyDst:close()
+assert(os.remove("copylink"), "remove copylink failed")
+assert(os.remove("copysrc"), "remove copysrc failed")
+assert(os.remove("copydst"), "remove copydst failed")
+
+print("test lfs.copytree")
+assert(lfs.mkdir("copytree" .. pathSeperator .. "a" .. pathSeperator .. "b", {parents = true}) == true, "mkdir copytree failed")
+for i = 1, 10 do
+    local treeFile = io.open("copytree" .. pathSeperator .. "a" .. pathSeperator .. "b" .. pathSeperator .. "f" .. i, "w")
+    treeFile:write("file " .. i)
+    treeFile:close()
+end
+local treeOk, treeCount, treeErrors = lfs.copytree("copytree", "copytree2", {preserve = true})
+assert(treeOk == true, "lfs.copytree failed " .. tostring(treeCount))
+assert(treeCount == 13, "lfs.copytree copied wrong number of entries " .. tostring(treeCount))
+assert(treeErrors == nil, "lfs.copytree reported errors")
+local treeCopy = io.open("copytree2" .. pathSeperator .. "a" .. pathSeperator .. "b" .. pathSeperator .. "f7", "r")
+assert(treeCopy:read("*a") == "file 7", "lfs.copytree content differs")
+treeCopy:close()
+assert(lfs.copytree("copytree", "copytree2") == nil, "lfs.copytree onto existing directory succeeded")
+treeOk, treeCount = lfs.copytree("copytree", "copytree2", {replace = true, parallel = false})
+assert(treeOk == true and treeCount == 13, "lfs.copytree with replace failed " .. tostring(treeCount))
+assert(lfs.copytree("this_hopefully_does_not_exist", "copytree3") == nil, "lfs.copytree of non existant directory succeeded")
+local _, _, intoSelfCode = lfs.copytree("copytree", "copytree" .. pathSeperator .. "a" .. pathSeperator .. "copy")
+assert(intoSelfCode == 22, "lfs.copytree into itself returned wrong error code " .. tostring(intoSelfCode))
+assert(lfs.attributes("copytree" .. pathSeperator .. "a" .. pathSeperator .. "copy") == nil, "lfs.copytree into itself created the destination")
+assert(lfs.copytree("copytree", "copytree", {replace = true}) == nil, "lfs.copytree onto itself succeeded")
+if pathSeperator == "/" then
+    os.execute("mkfifo copytree/a/fifo")
+    if lfs.attributes("copytree/a/fifo") ~= nil then
+        local _, fifoCount, fifoErrors = lfs.copytree("copytree", "copytree3")
+        assert(fifoCount == 13 and fifoErrors ~= nil and fifoErrors["a/fifo"] ~= nil, "lfs.copytree did not report fifo")
+        assert(lfs.copy("copytree/a/fifo", "copyfifo") == nil, "lfs.copy of fifo succeeded")
+        assert(lfs.rmdir("copytree3", {}) == true, "rmdir copytree3 failed")
+    end
+end
+assert(lfs.rmdir("copytree", {}) == true, "rmdir copytree failed")
+assert(lfs.rmdir("copytree2", {}) == true, "rmdir copytree2 failed")
+
+print("test lfs.rename")
+local renameFile = io.open("renamesrc", "w")
+renameFile:write("src")
+renameFile:close()
+renameFile = io.open("renamedst", "w")
+renameFile:write("dst")
+renameFile:close()
+assert(lfs.rename("renamesrc", "renamedst", {noreplace = true}) == nil, "lfs.rename with noreplace replaced existing file")
+assert(lfs.attributes("renamesrc", "mode") == "file", "lfs.rename with noreplace removed source")
+assert(lfs.rename("renamesrc", "renamedst", {exchange = true}) == nil, "lfs.rename with exchange succeeded")
+assert(lfs.rename("renamesrc", "renamenew", {noreplace = true}) == true, "lfs.rename with noreplace failed")
+assert(lfs.attributes("renamesrc") == nil, "lfs.rename with noreplace kept source")
+assert(lfs.attributes("renamenew", "nlink") == 1, "lfs.rename with noreplace left a hard link")
+assert(lfs.rename("renamenew", "renamedst") == true, "lfs.rename failed")
+renameFile = io.open("renamedst", "r")
+assert(renameFile:read("*a") == "src", "lfs.rename did not replace existing file")
+renameFile:close()
+assert(os.remove("renamedst"), "remove renamedst failed")
+assert(lfs.mkdir("renamedir") == true, "mkdir renamedir failed")
+assert(lfs.mkdir("renamedir2") == true, "mkdir renamedir2 failed")
+assert(lfs.rename("renamedir", "renamedir2", {noreplace = true}) == nil, "lfs.rename with noreplace replaced existing directory")
+assert(lfs.rmdir("renamedir2") == true, "rmdir renamedir2 failed")
+assert(lfs.rename("renamedir", "renamedir2", {noreplace = true}) == true, "lfs.rename of directory with noreplace failed")
+assert(lfs.attributes("renamedir") == nil, "lfs.rename of directory kept source")
+assert(lfs.rmdir("renamedir2") == true, "rmdir renamedir2 failed")
+assert(lfs.rename("this_hopefully_does_not_exist", "renamedst", {noreplace = true}) == nil, "lfs.rename of non existant file succeeded")
+assert(pcall(lfs.rename, "renamedst", "renamenew", "noreplace") == false, "lfs.rename with options that are not a table succeeded")
+
+print("test lfs.du")
+assert(lfs.mkdir("dutree" .. pathSeperator .. "a" .. pathSeperator .. "b", {parents = true}) == true, "mkdir dutree failed")
+assert(lfs.mkdir("dutree" .. pathSeperator .. "c") == true, "mkdir dutree/c failed")
+for _, duName in ipairs({"a" .. pathSeperator .. "f1", "a" .. pathSeperator .. "b" .. pathSeperator .. "f2", "c" .. pathSeperator .. "f3"}) do
+    local duFile = io.open("dutree" .. pathSeperator .. duName, "w")
+    duFile:write(string.rep("x", 1000))
+    duFile:close()
+end
+for _, duParallel in ipairs({false, true}) do
+    local duTotal = lfs.du("dutree", {parallel = duParallel})
+    assert(type(duTotal) == "table", "lfs.du failed")
+    assert(duTotal.files == 3, "lfs.du counted wrong number of files " .. tostring(duTotal.files))
+    assert(duTotal.directories == 4, "lfs.du counted wrong number of directories " .. tostring(duTotal.directories))
+    assert(duTotal.errors == 0, "lfs.du reported errors")
+    assert(duTotal.children.a.files == 2, "lfs.du counted wrong number of files in child")
+    assert(duTotal.children.c.files == 1, "lfs.du counted wrong number of files in child")
+    assert(duTotal.children.a.children == nil, "lfs.du split deeper than depth")
+    assert(duTotal.size >= 3000, "lfs.du size too small")
+end
+assert(lfs.du("dutree", {depth = 2}).children.a.children.b.files == 1, "lfs.du with depth 2 did not split second level")
+assert(lfs.link("dutree" .. pathSeperator .. "c" .. pathSeperator .. "f3", "dutree" .. pathSeperator .. "c" .. pathSeperator .. "f4", false) == true, "hard link failed")
+assert(lfs.du("dutree").files == 3, "lfs.du counted hard link twice")
+assert(lfs.du("this_hopefully_does_not_exist") == nil, "lfs.du of non existant directory succeeded")
+local _, _, duCode = lfs.du("this_hopefully_does_not_exist")
+assert(duCode == 2, "lfs.du of non existant directory returned wrong error code " .. tostring(duCode))
+assert(lfs.rmdir("dutree", {}) == true, "rmdir dutree failed")
+
+print("test lfs.mmap")
+local mmapFile = io.open("mmapfile", "w")
+mmapFile:write("hello mapped world")
+mmapFile:close()
+local mapping = lfs.mmap("mmapfile")
+assert(mapping ~= nil, "lfs.mmap failed")
+assert(mapping:len() == 18, "mapping has wrong length")
+assert(mapping:sub(1, 5) == "hello", "mapping sub failed")
+assert(mapping:sub(-5) == "world", "mapping sub with negative index failed")
+assert(mapping:sub(10, 5) == "", "mapping sub with empty range failed")
+assert(mapping:byte(1) == string.byte("h"), "mapping byte failed")
+local mb1, mb2 = mapping:byte(-2, -1)
+assert(mb1 == string.byte("l") and mb2 == string.byte("d"), "mapping byte range failed")
+local mf1, mf2 = mapping:find("mapped")
+assert(mf1 == 7 and mf2 == 12, "mapping find failed")
+assert(mapping:find("mapped", 8) == nil, "mapping find with init failed")
+assert(mapping:find("nothing") == nil, "mapping find of missing string succeeded")
+mapping:close()
+assert(pcall(mapping.len, mapping) == false, "closed mapping still usable")
+local partial = lfs.mmap("mmapfile", "r", 6, 6)
+assert(partial:sub(1) == "mapped", "partial mapping has wrong content")
+partial:close()
+assert(lfs.mmap("this_hopefully_does_not_exist") == nil, "lfs.mmap of non existant file succeeded")
+assert(os.remove("mmapfile"), "remove mmapfile failed")
+
+print("test lfs.checksum")
+local sumFile = io.open("sumfile1", "w")
+sumFile:write("abc")
+sumFile:close()
+sumFile = io.open("sumfile2", "w")
+sumFile:write("123456789")
+sumFile:close()
+assert(lfs.checksum("sumfile1") == "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", "lfs.checksum sha256 wrong")
+assert(lfs.checksum("sumfile1", "xxh64") == "44bc2cf5ad770999", "lfs.checksum xxh64 wrong")
+assert(lfs.checksum("sumfile2", "crc32c") == "e3069283", "lfs.checksum crc32c wrong")
+assert(lfs.checksum("sumfile2", "crc32") == "cbf43926", "lfs.checksum crc32 wrong")
+assert(#lfs.checksum("sumfile1", "md5", {raw = true}) == 16, "lfs.checksum raw has wrong length")
+assert(pcall(lfs.checksum, "sumfile1", "nope") == false, "lfs.checksum with unknown algorithm succeeded")
+assert(pcall(lfs.checksum, "sumfile1", "md5", true) == false, "lfs.checksum with options that are not a table succeeded")
+assert(lfs.checksum("this_hopefully_does_not_exist") == nil, "lfs.checksum of non existant file succeeded")
+local sums, sumErrors = lfs.checksum({"sumfile1", "this_hopefully_does_not_exist", "sumfile2"}, "crc32c")
+assert(sums[1] == lfs.checksum("sumfile1", "crc32c"), "lfs.checksum of list has wrong first entry")
+assert(sums[2] == false, "lfs.checksum of list did not fail for missing file")
+assert(sums[3] == "e3069283", "lfs.checksum of list has wrong third entry")
+assert(type(sumErrors[2]) == "table", "lfs.checksum of list did not report error")
+assert(os.remove("sumfile1"), "remove sumfile1 failed")
+assert(os.remove("sumfile2"), "remove sumfile2 failed")
+
+print("test lfs.snapshot and lfs.diff")
+assert(lfs.mkdir("snaptree" .. pathSeperator .. "sub", {parents = true}) == true, "mkdir snaptree failed")
+local function writeSnapFile(name, content)
+    local snapFile = io.open("snaptree" .. pathSeperator .. name, "w")
+    snapFile:write(content)
+    snapFile:close()
+end
+writeSnapFile("keep", "keep")
+writeSnapFile("change", "short")
+writeSnapFile("remove", "remove")
+local snapBefore, snapErrors = lfs.snapshot("snaptree")
+assert(snapBefore ~= nil and snapErrors == 0, "lfs.snapshot failed")
+assert(snapBefore:len() == 4, "lfs.snapshot has wrong number of entries " .. tostring(snapBefore:len()))
+writeSnapFile("change", "much longer content")
+writeSnapFile("sub" .. pathSeperator .. "added", "added")
+assert(os.remove("snaptree" .. pathSeperator .. "remove"), "remove snaptree/remove failed")
+local snapAfter = lfs.snapshot("snaptree", {parallel = true})
+local snapChanges = {}
+for change, path, mode in lfs.diff(snapBefore, snapAfter) do
+    snapChanges[path] = change
+    assert(type(mode) == "string", "lfs.diff did not return mode")
+end
+assert(snapChanges["change"] == "modified", "lfs.diff did not report modified file")
+assert(snapChanges["remove"] == "removed", "lfs.diff did not report removed file")
+assert(snapChanges["sub" .. pathSeperator .. "added"] == "added", "lfs.diff did not report added file")
+assert(snapChanges["keep"] == nil, "lfs.diff reported unchanged file")
+for _ in lfs.diff(snapAfter, snapAfter) do
+    assert(false, "lfs.diff of identical snapshots reported a change")
+end
+assert(pcall(lfs.diff, snapAfter, {}) == false, "lfs.diff accepted a table")
+assert(lfs.snapshot("this_hopefully_does_not_exist") == nil, "lfs.snapshot of non existant directory succeeded")
+local _, _, snapCode = lfs.snapshot("this_hopefully_does_not_exist")
+assert(snapCode == 2, "lfs.snapshot of non existant directory returned wrong error code " .. tostring(snapCode))
+assert(lfs.rmdir("snaptree", {}) == true, "rmdir snaptree failed")
+
+print("test lfs.index_open")
+assert(lfs.mkdir("indextree" .. pathSeperator .. "sub", {parents = true}) == true, "mkdir indextree failed")
+local indexFile = io.open("indextree" .. pathSeperator .. "sub" .. pathSeperator .. "file", "w")
+indexFile:write("content")
+indexFile:close()
+local index = lfs.index_open("indextree", "indexfile.idx")
+assert(index ~= nil, "lfs.index_open failed")
+local indexChanges = 0
+for change in index:changes() do
+    assert(change == "added", "first scan reported " .. change)
+    indexChanges = indexChanges + 1
+end
+assert(indexChanges == 2, "first scan reported wrong number of changes " .. tostring(indexChanges))
+assert(index:snapshot():len() == 2, "index snapshot has wrong number of entries")
+assert(index:errors() == 0, "index reported errors")
+index = lfs.index_open("indextree", "indexfile.idx")
+for change, path in index:changes() do
+    assert(false, "reopened index reported change " .. change .. " " .. path)
+end
+indexFile = io.open("indextree" .. pathSeperator .. "sub" .. pathSeperator .. "file2", "w")
+indexFile:close()
+local indexAdded = false
+for change, path in index:refresh() do
+    if change == "added" and path == "sub" .. pathSeperator .. "file2" then
+        indexAdded = true
+    end
+end
+assert(indexAdded, "index refresh did not find added file")
+assert(lfs.index_open("this_hopefully_does_not_exist", "indexfile2.idx") == nil, "lfs.index_open of non existant directory succeeded")
+assert(os.remove("indexfile.idx"), "remove indexfile.idx failed")
+assert(lfs.rmdir("indextree", {}) == true, "rmdir indextree failed")
+
+print("test lfs.glob")
+assert(lfs.mkdir("globtree" .. pathSeperator .. "a" .. pathSeperator .. "b", {parents = true}) == true, "mkdir globtree failed")
+for _, name in ipairs({"1.lua", "2.txt", "a" .. pathSeperator .. "3.lua", "a" .. pathSeperator .. "b" .. pathSeperator .. "4.lua"}) do
+    local globFile = io.open("globtree" .. pathSeperator .. name, "w")
+    globFile:close()
+end
+local function globAll(pattern, options)
+    local result = {}
+    for path in lfs.glob(pattern, options) do
+        table.insert(result, path)
+    end
+    return table.concat(result, ",")
+end
+assert(globAll("globtree/*.lua") == "globtree" .. pathSeperator .. "1.lua", "lfs.glob *.lua returned " .. globAll("globtree/*.lua"))
+assert(globAll("globtree/**/*.lua") == table.concat({"globtree" .. pathSeperator .. "1.lua", "globtree" .. pathSeperator .. "a" .. pathSeperator .. "3.lua",
+    "globtree" .. pathSeperator .. "a" .. pathSeperator .. "b" .. pathSeperator .. "4.lua"}, ","), "lfs.glob **/*.lua returned " .. globAll("globtree/**/*.lua"))
+assert(globAll("globtree/*/") == "globtree" .. pathSeperator .. "a", "lfs.glob */ returned " .. globAll("globtree/*/"))
+assert(globAll("globtree/[0-9].{txt,md}") == "globtree" .. pathSeperator .. "2.txt", "lfs.glob class and alternatives returned " .. globAll("globtree/[0-9].{txt,md}"))
+assert(globAll("globtree/nope/*") == "", "lfs.glob of non existant directory returned matches")
+assert(pcall(lfs.glob, "globtree/{a") == false, "lfs.glob accepted unclosed '{'")
+local globCwd = lfs.currentdir()
+assert(lfs.chdir("globtree") == true, "chdir globtree failed")
+assert(globAll("a/*.lua") == "a" .. pathSeperator .. "3.lua", "lfs.glob ignored work directory")
+assert(globAll("*.lua") == "1.lua", "lfs.glob without prefix ignored work directory")
+assert(lfs.chdir(globCwd) == true, "chdir back failed")
+assert(lfs.rmdir("globtree", {}) == true, "rmdir globtree failed")
+
+print("test path resolution after chdir")
+assert(lfs.mkdir("resolvecache") == true, "mkdir resolvecache failed")
+local resolveFile = io.open("resolvecache" .. pathSeperator .. "marker", "w")
+resolveFile:close()
+assert(lfs.attributes("marker") == nil, "marker visible before chdir")
+local resolveCwd = lfs.currentdir()
+assert(lfs.chdir("resolvecache") == true, "chdir resolvecache failed")
+assert(lfs.attributes("marker", "mode") == "file", "relative path still resolved against old work directory after chdir")
+assert(lfs.chdir(resolveCwd) == true, "chdir back failed")
+assert(lfs.attributes("marker") == nil, "relative path still resolved against old work directory after chdir back")
+assert(os.remove("resolvecache" .. pathSeperator .. "marker"), "remove marker failed")
+assert(lfs.rmdir("resolvecache") == true, "rmdir resolvecache failed")
+
+print("test lfs.invalidate")
+assert(lfs.invalidate(manyPaths[1]) == true, "lfs.invalidate failed")
+assert(lfs.invalidate(".", true) == true, "recursive lfs.invalidate failed")
+local cacheStats = lfs.cache_stats()
+assert(cacheStats == nil or cacheStats.hits >= 0, "lfs.cache_stats returned garbage")
+
+print("test lfs.watch")
+assert(lfs.mkdir("watchdir") == true, "mkdir for lfs.watch failed")
+local watcher = lfs.watch("watchdir")
+assert(watcher ~= nil, "lfs.watch failed")
+assert(#watcher:poll() == 0, "lfs.watch reported events for untouched directory")
+local watchFile = io.open("watchdir" .. pathSeperator .. "a.txt", "w")
+watchFile:write("a")
+watchFile:close()
+local watchPath, watchEvent = watcher:next(10)
+assert(watchPath == "watchdir" .. pathSeperator .. "a.txt", "lfs.watch reported wrong path " .. tostring(watchPath))
+assert(watchEvent == "create" or watchEvent == "modify", "lfs.watch reported wrong event " .. tostring(watchEvent))
+watcher:close()
+assert(pcall(watcher.poll, watcher) == false, "poll on closed watcher succeeded")
+assert(lfs.rmdir("watchdir") == true, "rmdir for lfs.watch failed")
+
+assert(lfs.mkdir("watchdir") == true, "mkdir for recursive lfs.watch failed")
+local treeWatcher = lfs.watch("watchdir", {recursive = true})
+assert(treeWatcher ~= nil, "recursive lfs.watch failed")
+local watchDeep = "watchdir" .. pathSeperator .. "sub" .. pathSeperator .. "deep"
+assert(lfs.mkdir(watchDeep, {parents = true}) == true, "mkdir below recursive lfs.watch failed")
+local watchDeepEvent = nil
+while true do
+    local path, event = treeWatcher:next(1)
+    if path == nil then
+        break
+    end
+    if path == watchDeep then
+        watchDeepEvent = event
+    end
+end
+assert(watchDeepEvent == "create", "recursive lfs.watch did not report " .. watchDeep .. " " .. tostring(watchDeepEvent))
+treeWatcher:close()
+assert(lfs.rmdir("watchdir", {}) == true, "rmdir of recursive lfs.watch tree failed")
+
 print("test explicit iter.next produces same result as nextFunc")
 assert(lfs.chdir(pwd) == true, "chdir failed")
 local nextFunc, iter = lfs.dir("." .. pathSeperator .. "testfolder" .. pathSeperator)